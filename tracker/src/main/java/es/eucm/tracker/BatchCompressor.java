@@ -0,0 +1,137 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses marshalled batches into gzip or zlib ("deflate" content-encoding)
+ * streams, encoding them to UTF-8 on the fly. Each thread reuses its own
+ * {@link Deflater} and buffers.
+ */
+final class BatchCompressor {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b,
+			Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9c };
+
+	private static final ThreadLocal<BatchCompressor> compressors = ThreadLocal
+			.withInitial(BatchCompressor::new);
+
+	private final Deflater deflater = new Deflater(
+			Deflater.DEFAULT_COMPRESSION, true);
+
+	private final CRC32 crc = new CRC32();
+
+	private final Adler32 adler = new Adler32();
+
+	private final byte[] output = new byte[BUFFER_SIZE];
+
+	private final char[] chars = new char[BUFFER_SIZE];
+
+	private BatchCompressor() {
+	}
+
+	/**
+	 * Writes {@code data}, compressed, to {@code out}.
+	 * 
+	 * @param gzip
+	 *            true for gzip format, false for zlib format.
+	 */
+	static void compress(CharSequence data, boolean gzip, OutputStream out)
+			throws IOException {
+		compressors.get().write(data, gzip, out);
+	}
+
+	private void write(CharSequence data, boolean gzip, OutputStream out)
+			throws IOException {
+		Checksum checksum = gzip ? crc : adler;
+		checksum.reset();
+		deflater.reset();
+		out.write(gzip ? GZIP_HEADER : ZLIB_HEADER);
+
+		Writer writer = new OutputStreamWriter(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				checksum.update(b, off, len);
+				deflater.setInput(b, off, len);
+				while (!deflater.needsInput()) {
+					deflate(out);
+				}
+			}
+		}, StandardCharsets.UTF_8);
+		for (int start = 0; start < data.length(); start += chars.length) {
+			int end = Math.min(data.length(), start + chars.length);
+			if (data instanceof String) {
+				((String) data).getChars(start, end, chars, 0);
+			} else if (data instanceof StringBuilder) {
+				((StringBuilder) data).getChars(start, end, chars, 0);
+			} else {
+				for (int i = start; i < end; i++) {
+					chars[i - start] = data.charAt(i);
+				}
+			}
+			writer.write(chars, 0, end - start);
+		}
+		writer.flush();
+		deflater.finish();
+		while (!deflater.finished()) {
+			deflate(out);
+		}
+
+		long value = checksum.getValue();
+		if (gzip) {
+			writeIntLE(out, value);
+			writeIntLE(out, deflater.getBytesRead());
+		} else {
+			out.write((int) (value >>> 24));
+			out.write((int) (value >>> 16));
+			out.write((int) (value >>> 8));
+			out.write((int) value);
+		}
+	}
+
+	private void deflate(OutputStream out) throws IOException {
+		int n = deflater.deflate(output, 0, output.length);
+		if (n > 0) {
+			out.write(output, 0, n);
+		}
+	}
+
+	private static void writeIntLE(OutputStream out, long value)
+			throws IOException {
+		out.write((int) value);
+		out.write((int) (value >>> 8));
+		out.write((int) (value >>> 16));
+		out.write((int) (value >>> 24));
+	}
+}
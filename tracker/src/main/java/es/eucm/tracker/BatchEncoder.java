@@ -0,0 +1,132 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.IOException;
+
+import es.eucm.tracker.TrackerSettings.TraceFormats;
+
+/**
+ * Encodes a batch of traces as it is sent: {@link #open(Appendable)},
+ * {@link #append(TrackerEvent, TrackerAsset)} for each trace, and
+ * {@link #close()}. Events are marshalled straight into the output (the
+ * pooled batch buffer, or a {@link java.io.Writer} over a sink), so a batch
+ * is never held twice.
+ */
+final class BatchEncoder {
+
+	private static final String LINE_SEPARATOR = TrackerEventMarshaller.LINE_SEPARATOR;
+
+	private final TrackerEventMarshaller marshaller;
+
+	/** JSON and xAPI batches are arrays */
+	private final boolean array;
+
+	/** NDJSON batches are lines without commas between them */
+	private final boolean lines;
+
+	/** Encoder of BINARY batches; null for text formats */
+	private final BinaryTraceEncoder binary;
+
+	private Appendable out;
+
+	private int count;
+
+	BatchEncoder(TrackerEventMarshaller marshaller, TraceFormats format) {
+		this.marshaller = marshaller;
+		this.array = isArray(format);
+		this.lines = format == TraceFormats.NDJSON;
+		this.binary = format == TraceFormats.BINARY ? BinaryTraceEncoder.get()
+				: null;
+	}
+
+	void open(Appendable out) throws IOException {
+		this.out = out;
+		this.count = 0;
+		if (binary != null) {
+			binary.open();
+		} else if (array) {
+			out.append('[').append(LINE_SEPARATOR);
+		}
+	}
+
+	void append(TrackerEvent event, TrackerAsset tracker) throws IOException {
+		if (binary != null) {
+			binary.append(event);
+			count++;
+			return;
+		}
+		if (count > 0) {
+			if (!lines) {
+				out.append(',');
+			}
+			out.append(LINE_SEPARATOR);
+		}
+		marshaller.marshal(event, tracker, out);
+		count++;
+	}
+
+	void close() throws IOException {
+		if (binary != null) {
+			binary.close();
+			binary.writeBase64(out);
+		}
+		out.append(LINE_SEPARATOR);
+		if (array) {
+			out.append(']');
+		}
+		out = null;
+	}
+
+	/**
+	 * @return traces appended since the batch was opened.
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * Converts a batch encoded in one format into the framing of another,
+	 * without marshalling its traces again (the events are the same).
+	 * 
+	 * @return the converted batch, or null if one of the formats is BINARY
+	 *         or NDJSON.
+	 */
+	static CharSequence reframe(CharSequence batch, TraceFormats from,
+			TraceFormats to) {
+		boolean fromArray = isArray(from);
+		if (from == TraceFormats.BINARY || to == TraceFormats.BINARY
+				|| from == TraceFormats.NDJSON || to == TraceFormats.NDJSON) {
+			return from == to ? batch : null;
+		} else if (fromArray == isArray(to)) {
+			return batch;
+		} else if (fromArray) {
+			return batch.subSequence(1 + LINE_SEPARATOR.length(),
+					batch.length() - 1);
+		} else {
+			return new StringBuilder(batch.length() + 3).append('[')
+					.append(LINE_SEPARATOR).append(batch).append(']');
+		}
+	}
+
+	/**
+	 * @return true if batches of {@code format} are JSON arrays, which must
+	 *         be merged to be stored in a single file.
+	 */
+	static boolean isArray(TraceFormats format) {
+		return format == TraceFormats.JSON || format == TraceFormats.XAPI;
+	}
+}
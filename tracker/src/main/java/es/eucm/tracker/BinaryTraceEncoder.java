@@ -0,0 +1,366 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.eucm.tracker.TrackerEvent.TraceObject;
+import es.eucm.tracker.TrackerEvent.TraceResult;
+import es.eucm.tracker.TrackerUtils.XApiConstant;
+
+/**
+ * Encodes batches of traces in the BINARY trace format:
+ *
+ * <pre>
+ * batch     := 'T' 'B' version event* 0xff
+ * event     := verb timestamp type string(target id) result
+ * verb      := byte(Verb ordinal + 1) | 0 string
+ * timestamp := zigzag(ms since the previous event, or since the epoch)
+ *              varint(ns within the ms)
+ * type      := byte(ACTIVITY_TYPES index + 1) | 0 string
+ * result    := byte(flags) [string(response)] [float(score)]
+ *              [varint(count) (string(key) value)*]
+ * value     := tag (string | zigzag | float | double | string(json) | map
+ *              | list)?
+ *              (doubles holding integers or floats are written as such)
+ * map       := varint(count) (string(key) value)*
+ * list      := varint(count) value*
+ * string    := varint(0) varint(utf-8 length + 1) bytes  (new dictionary entry)
+ *            | varint(0) varint(0)  (null)
+ *            | varint(dictionary index + 1)
+ * </pre>
+ *
+ * Varints are little-endian base 128; floats and doubles are big-endian
+ * IEEE 754. The dictionary is per batch. Encoders keep their buffer across
+ * batches, so encoding does not allocate in steady state.
+ *
+ * Maps are read back as LinkedHashMaps, and other collections as Lists. Any
+ * other value is written as JSON with gson, and read back as gson reads it
+ * (numbers become Doubles).
+ */
+final class BinaryTraceEncoder {
+
+	static final int VERSION = 1;
+
+	static final int END = 0xff;
+
+	static final int SUCCESS = 1, SUCCESS_TRUE = 2, COMPLETION = 4,
+			COMPLETION_TRUE = 8, RESPONSE = 16, SCORE = 32, EXTENSIONS = 64;
+
+	static final int STRING = 0, FALSE = 1, TRUE = 2, INT = 3, LONG = 4,
+			FLOAT = 5, DOUBLE = 6, JSON = 7, INTEGRAL_DOUBLE = 8,
+			FLOAT_DOUBLE = 9, MAP = 10, LIST = 11;
+
+	static final TraceVerb.Verb[] VERBS = TraceVerb.Verb.values();
+
+	/** Activity types with a single-byte code */
+	static final String[] ACTIVITY_TYPES;
+
+	private static final String[] VERB_NAMES = new String[VERBS.length];
+
+	private static final Map<String, Integer> TYPE_CODES = new HashMap<>();
+
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+
+	private static final ThreadLocal<BinaryTraceEncoder> encoders = ThreadLocal
+			.withInitial(BinaryTraceEncoder::new);
+
+	static {
+		for (int i = 0; i < VERBS.length; i++) {
+			VERB_NAMES[i] = VERBS[i].toString().toLowerCase();
+		}
+		List<String> types = new ArrayList<>();
+		for (Class<?> c : Arrays.asList(CompletableTracker.Completable.class,
+				AccessibleTracker.Accessible.class,
+				AlternativeTracker.Alternative.class,
+				GameObjectTracker.TrackedGameObject.class)) {
+			for (Object type : c.getEnumConstants()) {
+				String name = ((XApiConstant) type).getSimpleName();
+				if (!TYPE_CODES.containsKey(name)) {
+					types.add(name);
+					TYPE_CODES.put(name, types.size());
+				}
+			}
+		}
+		ACTIVITY_TYPES = types.toArray(new String[0]);
+	}
+
+	private byte[] buffer = new byte[4096];
+
+	private int size;
+
+	private final Map<String, Integer> dictionary = new HashMap<>();
+
+	private long lastMillis;
+
+	private BinaryTraceEncoder() {
+	}
+
+	/**
+	 * @return this thread's encoder.
+	 */
+	static BinaryTraceEncoder get() {
+		return encoders.get();
+	}
+
+	void open() {
+		size = 0;
+		dictionary.clear();
+		lastMillis = 0;
+		writeByte('T');
+		writeByte('B');
+		writeByte(VERSION);
+	}
+
+	/**
+	 * @return the single-byte code of a verb (its ordinal + 1), or 0 if it
+	 *         is not one of the xAPI verbs.
+	 */
+	static int verbCode(TraceVerb verb) {
+		TraceVerb.Verb xApiVerb = verb.getVerb();
+		if (xApiVerb != null
+				&& VERB_NAMES[xApiVerb.ordinal()].equals(verb.getStringVerb())) {
+			return xApiVerb.ordinal() + 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the single-byte code of an activity type (its index in
+	 *         {@link #ACTIVITY_TYPES} + 1), or 0 if it has none.
+	 */
+	static int typeCode(String type) {
+		Integer code = TYPE_CODES.get(type);
+		return code == null ? 0 : code;
+	}
+
+	void append(TrackerEvent event) {
+		TraceVerb verb = event.getEvent();
+		int verbCode = verbCode(verb);
+		writeByte(verbCode);
+		if (verbCode == 0) {
+			writeString(verb.getStringVerb());
+		}
+
+		Instant timestamp = event.getTimeStamp();
+		long millis = timestamp.toEpochMilli();
+		writeVarint(zigzag(millis - lastMillis));
+		writeVarint(timestamp.getNano() % 1000000);
+		lastMillis = millis;
+
+		TraceObject target = event.getTarget();
+		int type = typeCode(target.getType());
+		writeByte(type);
+		if (type == 0) {
+			writeString(target.getType());
+		}
+		writeString(target.getID());
+
+		writeResult(event.getResult());
+	}
+
+	void close() {
+		writeByte(END);
+	}
+
+	/**
+	 * @return a copy of the encoded batch.
+	 */
+	byte[] toByteArray() {
+		return Arrays.copyOf(buffer, size);
+	}
+
+	/**
+	 * Writes the encoded batch in base64, for text storage and transports.
+	 */
+	void writeBase64(Appendable out) throws IOException {
+		int i = 0;
+		for (; i + 2 < size; i += 3) {
+			int bits = (buffer[i] & 0xff) << 16 | (buffer[i + 1] & 0xff) << 8
+					| (buffer[i + 2] & 0xff);
+			out.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 63])
+					.append(BASE64[(bits >>> 6) & 63]).append(BASE64[bits & 63]);
+		}
+		if (i < size) {
+			int bits = (buffer[i] & 0xff) << 16;
+			if (i + 1 < size) {
+				bits |= (buffer[i + 1] & 0xff) << 8;
+			}
+			out.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 63]);
+			out.append(i + 1 < size ? BASE64[(bits >>> 6) & 63] : '=')
+					.append('=');
+		}
+	}
+
+	private void writeResult(TraceResult result) {
+		Boolean success = result.getSuccess();
+		Boolean completion = result.getCompletion();
+		String response = result.getResponse();
+		Float score = result.getScore();
+		Map<String, Object> extensions = result.getExtensions();
+		int flags = 0;
+		if (success != null) {
+			flags |= success ? SUCCESS | SUCCESS_TRUE : SUCCESS;
+		}
+		if (completion != null) {
+			flags |= completion ? COMPLETION | COMPLETION_TRUE : COMPLETION;
+		}
+		if (response != null) {
+			flags |= RESPONSE;
+		}
+		if (score != null) {
+			flags |= SCORE;
+		}
+		if (extensions != null && !extensions.isEmpty()) {
+			flags |= EXTENSIONS;
+		}
+		writeByte(flags);
+		if (response != null) {
+			writeString(response);
+		}
+		if (score != null) {
+			writeInt(Float.floatToRawIntBits(score));
+		}
+		if ((flags & EXTENSIONS) != 0) {
+			writeVarint(extensions.size());
+			for (Map.Entry<String, Object> extension : extensions.entrySet()) {
+				writeString(extension.getKey());
+				writeValue(extension.getValue());
+			}
+		}
+	}
+
+	private void writeValue(Object value) {
+		if (value instanceof String) {
+			writeByte(STRING);
+			writeString((String) value);
+		} else if (value instanceof Boolean) {
+			writeByte((Boolean) value ? TRUE : FALSE);
+		} else if (value instanceof Integer) {
+			writeByte(INT);
+			writeVarint(zigzag((Integer) value));
+		} else if (value instanceof Long) {
+			writeByte(LONG);
+			writeVarint(zigzag((Long) value));
+		} else if (value instanceof Float) {
+			writeByte(FLOAT);
+			writeInt(Float.floatToRawIntBits((Float) value));
+		} else if (value instanceof Double) {
+			double d = (Double) value;
+			long integral = (long) d;
+			if (integral == d && (integral != 0 || 1 / d > 0)) {
+				writeByte(INTEGRAL_DOUBLE);
+				writeVarint(zigzag(integral));
+			} else if ((float) d == d) {
+				writeByte(FLOAT_DOUBLE);
+				writeInt(Float.floatToRawIntBits((float) d));
+			} else {
+				long bits = Double.doubleToRawLongBits(d);
+				writeByte(DOUBLE);
+				writeInt((int) (bits >>> 32));
+				writeInt((int) bits);
+			}
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			writeByte(MAP);
+			writeVarint(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeString(String.valueOf(entry.getKey()));
+				writeValue(entry.getValue());
+			}
+		} else if (value instanceof Collection) {
+			Collection<?> list = (Collection<?>) value;
+			writeByte(LIST);
+			writeVarint(list.size());
+			for (Object element : list) {
+				writeValue(element);
+			}
+		} else {
+			writeByte(JSON);
+			writeString(TrackerAsset.gson.toJson(value));
+		}
+	}
+
+	private void writeString(String value) {
+		if (value == null) {
+			writeVarint(0);
+			writeVarint(0);
+			return;
+		}
+		Integer index = dictionary.get(value);
+		if (index != null) {
+			writeVarint(index + 1L);
+			return;
+		}
+		dictionary.put(value, dictionary.size());
+		writeVarint(0);
+		writeVarint(TrackerUtils.utf8Length(value) + 1);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				writeByte(c);
+			} else if (c < 0x800) {
+				writeByte(0xc0 | c >> 6);
+				writeByte(0x80 | c & 0x3f);
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				writeByte(0xf0 | cp >> 18);
+				writeByte(0x80 | (cp >> 12) & 0x3f);
+				writeByte(0x80 | (cp >> 6) & 0x3f);
+				writeByte(0x80 | cp & 0x3f);
+			} else {
+				writeByte(0xe0 | c >> 12);
+				writeByte(0x80 | (c >> 6) & 0x3f);
+				writeByte(0x80 | c & 0x3f);
+			}
+		}
+	}
+
+	private void writeInt(int value) {
+		writeByte(value >>> 24);
+		writeByte(value >>> 16);
+		writeByte(value >>> 8);
+		writeByte(value);
+	}
+
+	private void writeVarint(long value) {
+		while ((value & ~0x7fL) != 0) {
+			writeByte((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		writeByte((int) value);
+	}
+
+	private void writeByte(int value) {
+		if (size == buffer.length) {
+			buffer = Arrays.copyOf(buffer, size * 2);
+		}
+		buffer[size++] = (byte) value;
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.eucm.tracker.TrackerEvent.TraceResult;
+import es.eucm.tracker.exceptions.TrackerException;
+import es.eucm.tracker.exceptions.UnmarshallingException;
+
+/**
+ * Reads batches in the BINARY trace format (see {@link BinaryTraceEncoder}),
+ * either raw or as the base64 lines written to text storage.
+ */
+public class BinaryTrackerEventUnmarshaller
+		implements TrackerEventUnmarshaller {
+
+	/**
+	 * @param event
+	 *            a base64 batch holding a single trace.
+	 */
+	@Override
+	public TrackerEvent unmarshal(String event) {
+		List<TrackerEvent> events = unmarshalBatch(event);
+		if (events.size() != 1) {
+			throw new UnmarshallingException(
+					"Expected a single trace, found " + events.size());
+		}
+		return events.get(0);
+	}
+
+	/**
+	 * @param batch
+	 *            a base64-encoded batch.
+	 */
+	public List<TrackerEvent> unmarshalBatch(String batch) {
+		if (batch == null) {
+			throw new NullPointerException("batch must not be null");
+		}
+		try {
+			return unmarshalBatch(Base64.getDecoder().decode(batch.trim()));
+		} catch (IllegalArgumentException e) {
+			throw new UnmarshallingException("Not a base64 batch", e);
+		}
+	}
+
+	public List<TrackerEvent> unmarshalBatch(byte[] batch) {
+		return new Reader(batch).readBatch();
+	}
+
+	private static class Reader {
+
+		private final byte[] data;
+
+		private int position;
+
+		private final List<String> dictionary = new ArrayList<>();
+
+		private long lastMillis;
+
+		Reader(byte[] data) {
+			this.data = data;
+		}
+
+		List<TrackerEvent> readBatch() {
+			if (readByte() != 'T' || readByte() != 'B') {
+				throw new UnmarshallingException("Not a binary trace batch");
+			}
+			int version = readByte();
+			if (version != BinaryTraceEncoder.VERSION) {
+				throw new UnmarshallingException(
+						"Unsupported binary trace version: " + version);
+			}
+			List<TrackerEvent> events = new ArrayList<>();
+			int verb;
+			while ((verb = readByte()) != BinaryTraceEncoder.END) {
+				try {
+					events.add(readEvent(verb));
+				} catch (TrackerException e) {
+					throw new UnmarshallingException("Can not parse trace", e);
+				}
+			}
+			return events;
+		}
+
+		private TrackerEvent readEvent(int verbCode) {
+			TraceVerb verb;
+			if (verbCode == 0) {
+				verb = new TraceVerb(readString());
+			} else if (verbCode <= BinaryTraceEncoder.VERBS.length) {
+				verb = new TraceVerb(BinaryTraceEncoder.VERBS[verbCode - 1]);
+			} else {
+				throw new UnmarshallingException("Unknown verb: " + verbCode);
+			}
+
+			long millis = lastMillis + unzigzag(readVarint());
+			lastMillis = millis;
+			Instant timestamp = Instant.ofEpochMilli(millis)
+					.plusNanos(readVarint());
+
+			int typeCode = readByte();
+			String type;
+			if (typeCode == 0) {
+				type = readString();
+			} else if (typeCode <= BinaryTraceEncoder.ACTIVITY_TYPES.length) {
+				type = BinaryTraceEncoder.ACTIVITY_TYPES[typeCode - 1];
+			} else {
+				throw new UnmarshallingException(
+						"Unknown activity type: " + typeCode);
+			}
+			TrackerEvent event = new TrackerEvent(timestamp);
+			event.setEvent(verb);
+			event.setTarget(new TrackerEvent.TraceObject(type, readString()));
+			readResult(event.getResult());
+			return event;
+		}
+
+		private void readResult(TraceResult result) {
+			int flags = readByte();
+			if ((flags & BinaryTraceEncoder.SUCCESS) != 0) {
+				result.setSuccess(
+						(flags & BinaryTraceEncoder.SUCCESS_TRUE) != 0);
+			}
+			if ((flags & BinaryTraceEncoder.COMPLETION) != 0) {
+				result.setCompletion(
+						(flags & BinaryTraceEncoder.COMPLETION_TRUE) != 0);
+			}
+			if ((flags & BinaryTraceEncoder.RESPONSE) != 0) {
+				result.setResponse(readString());
+			}
+			if ((flags & BinaryTraceEncoder.SCORE) != 0) {
+				result.setScore(Float.intBitsToFloat(readInt()));
+			}
+			if ((flags & BinaryTraceEncoder.EXTENSIONS) != 0) {
+				long count = readVarint();
+				for (long i = 0; i < count; i++) {
+					String key = readString();
+					result.getExtensions().put(key, readValue());
+				}
+			}
+		}
+
+		private Object readValue() {
+			int tag = readByte();
+			switch (tag) {
+			case BinaryTraceEncoder.STRING:
+				return readString();
+			case BinaryTraceEncoder.FALSE:
+				return false;
+			case BinaryTraceEncoder.TRUE:
+				return true;
+			case BinaryTraceEncoder.INT:
+				return (int) unzigzag(readVarint());
+			case BinaryTraceEncoder.LONG:
+				return unzigzag(readVarint());
+			case BinaryTraceEncoder.FLOAT:
+				return Float.intBitsToFloat(readInt());
+			case BinaryTraceEncoder.DOUBLE:
+				long high = readInt() & 0xffffffffL;
+				return Double.longBitsToDouble(
+						high << 32 | (readInt() & 0xffffffffL));
+			case BinaryTraceEncoder.INTEGRAL_DOUBLE:
+				return (double) unzigzag(readVarint());
+			case BinaryTraceEncoder.FLOAT_DOUBLE:
+				return (double) Float.intBitsToFloat(readInt());
+			case BinaryTraceEncoder.JSON:
+				return TrackerAsset.gson.fromJson(readString(), Object.class);
+			case BinaryTraceEncoder.MAP:
+				long entries = readVarint();
+				Map<String, Object> map = new LinkedHashMap<>();
+				for (long i = 0; i < entries; i++) {
+					String key = readString();
+					map.put(key, readValue());
+				}
+				return map;
+			case BinaryTraceEncoder.LIST:
+				long elements = readVarint();
+				List<Object> list = new ArrayList<>();
+				for (long i = 0; i < elements; i++) {
+					list.add(readValue());
+				}
+				return list;
+			default:
+				throw new UnmarshallingException("Unknown value tag: " + tag);
+			}
+		}
+
+		private String readString() {
+			long index = readVarint();
+			if (index > 0) {
+				if (index > dictionary.size()) {
+					throw new UnmarshallingException(
+							"Unknown dictionary entry: " + index);
+				}
+				return dictionary.get((int) index - 1);
+			}
+			// 0 is null, other lengths are shifted by one
+			long length = readVarint() - 1;
+			if (length < 0) {
+				return null;
+			}
+			if (length > data.length - position) {
+				throw new UnmarshallingException("Truncated batch");
+			}
+			String value = new String(data, position, (int) length,
+					StandardCharsets.UTF_8);
+			position += length;
+			dictionary.add(value);
+			return value;
+		}
+
+		private int readInt() {
+			return readByte() << 24 | readByte() << 16 | readByte() << 8
+					| readByte();
+		}
+
+		private long readVarint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new UnmarshallingException("Malformed varint");
+		}
+
+		private int readByte() {
+			if (position >= data.length) {
+				throw new UnmarshallingException("Truncated batch");
+			}
+			return data[position++] & 0xff;
+		}
+
+		private static long unzigzag(long value) {
+			return (value >>> 1) ^ -(value & 1);
+		}
+	}
+}
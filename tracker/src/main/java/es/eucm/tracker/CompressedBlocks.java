@@ -0,0 +1,320 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Files compressed in independent blocks, so that they can be read from any
+ * position without inflating what comes before.
+ *
+ * Layout: {@code "TZ" version}, then each block as
+ * {@code [raw length][compressed length][crc of the raw bytes][raw deflate]},
+ * then the index, {@code [blocks]} followed by {@code [raw offset][file
+ * offset]} for each block, and a trailer {@code [index offset] "TZ"}. Ints
+ * and longs are big-endian.
+ */
+final class CompressedBlocks {
+
+	/** Extension appended to the name of compressed files */
+	static final String EXTENSION = ".z";
+
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	private static final byte[] MAGIC = { 'T', 'Z' };
+
+	private static final int VERSION = 1;
+
+	private static final int TRAILER = 8 + MAGIC.length;
+
+	private CompressedBlocks() {
+	}
+
+	/**
+	 * Compresses {@code source} into {@code target}, which only appears once
+	 * complete. Stops with an {@link InterruptedIOException} if the thread is
+	 * interrupted.
+	 */
+	static void compress(File source, File target) throws IOException {
+		File tmp = new File(target.getPath() + ".tmp");
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		CRC32 crc = new CRC32();
+		byte[] raw = new byte[BLOCK_SIZE];
+		byte[] compressed = new byte[BLOCK_SIZE + BLOCK_SIZE / 8 + 64];
+		long[] rawOffsets = new long[16];
+		long[] fileOffsets = new long[16];
+		int blocks = 0;
+		boolean done = false;
+		try (InputStream in = new FileInputStream(source);
+				FileOutputStream file = new FileOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(file, BLOCK_SIZE))) {
+			out.write(MAGIC);
+			out.write(VERSION);
+			long rawOffset = 0;
+			long fileOffset = MAGIC.length + 1;
+			int n;
+			while ((n = readFully(in, raw)) > 0) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("Compaction interrupted");
+				}
+				if (blocks == rawOffsets.length) {
+					rawOffsets = Arrays.copyOf(rawOffsets, blocks * 2);
+					fileOffsets = Arrays.copyOf(fileOffsets, blocks * 2);
+				}
+				rawOffsets[blocks] = rawOffset;
+				fileOffsets[blocks] = fileOffset;
+				blocks++;
+				deflater.reset();
+				deflater.setInput(raw, 0, n);
+				deflater.finish();
+				int length = 0;
+				while (!deflater.finished()) {
+					if (length == compressed.length) {
+						compressed = Arrays.copyOf(compressed, length * 2);
+					}
+					length += deflater.deflate(compressed, length,
+							compressed.length - length);
+				}
+				crc.reset();
+				crc.update(raw, 0, n);
+				out.writeInt(n);
+				out.writeInt(length);
+				out.writeInt((int) crc.getValue());
+				out.write(compressed, 0, length);
+				rawOffset += n;
+				fileOffset += 12 + length;
+			}
+			out.writeInt(blocks);
+			for (int i = 0; i < blocks; i++) {
+				out.writeLong(rawOffsets[i]);
+				out.writeLong(fileOffsets[i]);
+			}
+			out.writeLong(fileOffset);
+			out.write(MAGIC);
+			out.flush();
+			file.getFD().sync();
+			done = true;
+		} finally {
+			deflater.end();
+			if (!done) {
+				tmp.delete();
+			}
+		}
+		Files.move(tmp.toPath(), target.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static int readFully(InputStream in, byte[] buffer)
+			throws IOException {
+		int n = 0;
+		while (n < buffer.length) {
+			int read = in.read(buffer, n, buffer.length - n);
+			if (read < 0) {
+				break;
+			}
+			n += read;
+		}
+		return n;
+	}
+
+	/**
+	 * Reads a compressed file as the original bytes, inflating one block at
+	 * a time; {@link #seek(long)} jumps to any original position.
+	 */
+	static class Reader extends InputStream {
+
+		private final RandomAccessFile file;
+
+		private final long[] rawOffsets;
+
+		private final long[] fileOffsets;
+
+		private final long length;
+
+		private final Inflater inflater = new Inflater(true);
+
+		private final CRC32 crc = new CRC32();
+
+		private byte[] compressed = new byte[BLOCK_SIZE];
+
+		private byte[] block = new byte[BLOCK_SIZE];
+
+		/** Index of the block in {@link #block}, or -1 */
+		private int current = -1;
+
+		private int blockLength;
+
+		/** Position in the original bytes */
+		private long position;
+
+		Reader(File source) throws IOException {
+			file = new RandomAccessFile(source, "r");
+			try {
+				if (file.length() < MAGIC.length + 1 + 4 + TRAILER) {
+					throw new EOFException("Not a compressed file: " + source);
+				}
+				byte[] magic = new byte[MAGIC.length];
+				file.readFully(magic);
+				if (!Arrays.equals(magic, MAGIC) || file.read() != VERSION) {
+					throw new IOException("Not a compressed file: " + source);
+				}
+				file.seek(file.length() - TRAILER);
+				long indexOffset = file.readLong();
+				file.readFully(magic);
+				if (!Arrays.equals(magic, MAGIC)) {
+					throw new IOException("Truncated compressed file: "
+							+ source);
+				}
+				file.seek(indexOffset);
+				int blocks = file.readInt();
+				rawOffsets = new long[blocks];
+				fileOffsets = new long[blocks];
+				for (int i = 0; i < blocks; i++) {
+					rawOffsets[i] = file.readLong();
+					fileOffsets[i] = file.readLong();
+				}
+				if (blocks == 0) {
+					length = 0;
+				} else {
+					file.seek(fileOffsets[blocks - 1]);
+					length = rawOffsets[blocks - 1] + file.readInt();
+				}
+			} catch (IOException e) {
+				file.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return length of the original file.
+		 */
+		long length() {
+			return length;
+		}
+
+		/**
+		 * Moves to a position of the original file.
+		 */
+		void seek(long position) {
+			this.position = Math.max(0, Math.min(position, length));
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position >= length) {
+				return -1;
+			}
+			int index = Arrays.binarySearch(rawOffsets, position);
+			if (index < 0) {
+				index = -index - 2;
+			}
+			load(index);
+			int start = (int) (position - rawOffsets[index]);
+			int n = Math.min(len, blockLength - start);
+			System.arraycopy(block, start, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			long from = position;
+			seek(position + Math.max(0, n));
+			return position - from;
+		}
+
+		@Override
+		public int available() {
+			return current < 0 ? 0
+					: (int) Math.max(0,
+							rawOffsets[current] + blockLength - position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			file.close();
+		}
+
+		private void load(int index) throws IOException {
+			if (index == current) {
+				return;
+			}
+			current = -1;
+			file.seek(fileOffsets[index]);
+			int rawLength = file.readInt();
+			int compressedLength = file.readInt();
+			int checksum = file.readInt();
+			if (compressed.length < compressedLength) {
+				compressed = new byte[compressedLength];
+			}
+			if (block.length < rawLength) {
+				block = new byte[rawLength];
+			}
+			file.readFully(compressed, 0, compressedLength);
+			inflater.reset();
+			inflater.setInput(compressed, 0, compressedLength);
+			try {
+				int n = 0;
+				while (n < rawLength && !inflater.finished()) {
+					int inflated = inflater.inflate(block, n, rawLength - n);
+					if (inflated == 0 && inflater.needsInput()) {
+						break;
+					}
+					n += inflated;
+				}
+				if (n != rawLength) {
+					throw new IOException("Corrupt compressed block " + index);
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt compressed block " + index, e);
+			}
+			crc.reset();
+			crc.update(block, 0, rawLength);
+			if ((int) crc.getValue() != checksum) {
+				throw new IOException("Corrupt compressed block " + index);
+			}
+			current = index;
+			blockLength = rawLength;
+		}
+	}
+}
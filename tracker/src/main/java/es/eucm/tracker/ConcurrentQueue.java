@@ -13,98 +13,274 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-//
-// Translated by CS2J (http://www.cs2j.com): 05/11/2018 15:29:15
-//
-
 package es.eucm.tracker;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
 
-public class ConcurrentQueue<T> {
-	private final Object syncLock = new Object();
-	private LinkedList<T> queue = new LinkedList<T>();
+/**
+ * Multi-producer / single-consumer FIFO queue.
+ *
+ * Producers claim slots of a preallocated ring buffer with a single CAS, so
+ * {@link #enqueue(Object)} neither locks nor allocates while the ring has room.
+ * When the ring is full the queue switches to an overflow list (guarded by a
+ * lock) until the consumer has drained it, so the queue remains unbounded and
+ * FIFO ordered.
+ *
+ * Batches are consumed with {@link #drainTo(Consumer, int)}, which hands out
+ * the oldest elements without removing them, followed by {@link #commit()} (to
+ * remove them) or {@link #rollback()} (to keep them); both cost O(batch size).
+ *
+ * Only one thread at a time may consume ({@link #peek(Integer)},
+ * {@link #drainTo(Consumer, int)}, {@link #commit()}, {@link #rollback()},
+ * {@link #dequeue()}, {@link #dequeue(int)}, {@link #clear()}).
+ */
+public class ConcurrentQueue<T> implements TraceQueue<T> {
 
-	public int getCount() {
-		synchronized (syncLock) {
-			{
-				return queue.size();
-			}
+	/** Default number of preallocated slots */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** Set on the producer index while the overflow list is in use */
+	private static final long OVERFLOW = Long.MIN_VALUE;
+
+	private final Object[] buffer;
+	/**
+	 * Per-slot sequence: equals the position when the slot is free, and the
+	 * position + 1 once the element for that position has been published.
+	 */
+	private final AtomicLongArray sequences;
+	private final int mask;
+
+	/** Next position to be claimed by producers (plus the OVERFLOW flag) */
+	private final AtomicLong tail = new AtomicLong();
+	/** Next position to be consumed; only written by the consumer */
+	private final AtomicLong head = new AtomicLong();
+
+	private final Object overflowLock = new Object();
+	private final ArrayDeque<T> overflow = new ArrayDeque<>();
+	private volatile int overflowCount;
+
+	/** Elements handed out by drainTo and not yet committed */
+	private int reserved;
+
+	public ConcurrentQueue() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            number of preallocated slots, rounded up to a power of two.
+	 */
+	public ConcurrentQueue(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
 		}
+		this.buffer = new Object[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.mask = size - 1;
 	}
 
-	public ConcurrentQueue() {
-		this.queue = new LinkedList<T>();
+	/**
+	 * Number of queued elements. Wait-free: it only reads two counters.
+	 */
+	public int getCount() {
+		long ring = (tail.get() & ~OVERFLOW) - head.get();
+		return (int) Math.min(Integer.MAX_VALUE, ring + overflowCount);
 	}
 
 	public List<T> peek(Integer n) {
-		synchronized (syncLock) {
-			{
-				n = Math.min((Integer) queue.size(), n);
-				ArrayList<T> tmp = new ArrayList<T>();
-				Iterator<T> it = queue.iterator();
-				while (it.hasNext()) {
-					tmp.add(it.next());
-				}
+		n = Math.min(getCount(), n);
+		ArrayList<T> tmp = new ArrayList<T>(n);
+		visit(0, n, tmp::add);
+		return tmp;
+	}
 
-				// puede fallar
-				return tmp;
-			}
-		}
+	/**
+	 * Hands the oldest elements not yet reserved to {@code consumer}, without
+	 * removing them from the queue. Successive calls continue where the
+	 * previous one stopped, until {@link #commit()} or {@link #rollback()}.
+	 *
+	 * @param consumer
+	 *            receives the elements, oldest first.
+	 * @param max
+	 *            maximum number of elements to hand out.
+	 * @return the number of elements handed out.
+	 */
+	public int drainTo(Consumer<? super T> consumer, int max) {
+		int n = visit(reserved, max, consumer);
+		reserved += n;
+		return n;
+	}
+
+	/**
+	 * Removes the elements handed out by {@link #drainTo(Consumer, int)}.
+	 */
+	public void commit() {
+		int n = reserved;
+		reserved = 0;
+		dequeue(n);
+	}
+
+	/**
+	 * Keeps the elements handed out by {@link #drainTo(Consumer, int)} in the
+	 * queue; the next drain starts again from the oldest element.
+	 */
+	public void rollback() {
+		reserved = 0;
 	}
 
 	public void enqueue(T obj) {
-		synchronized (syncLock) {
-			{
-				queue.addLast(obj);
+		for (;;) {
+			long t = tail.get();
+			if ((t & OVERFLOW) == 0) {
+				int idx = (int) t & mask;
+				long seq = sequences.get(idx);
+				if (seq == t) {
+					if (tail.compareAndSet(t, t + 1)) {
+						buffer[idx] = obj;
+						sequences.lazySet(idx, t + 1);
+						return;
+					}
+					continue;
+				} else if (seq > t) {
+					// another producer claimed this position, retry
+					continue;
+				}
+				// ring is full: switch to the overflow list
+				if (!tail.compareAndSet(t, t | OVERFLOW)) {
+					continue;
+				}
+			}
+			synchronized (overflowLock) {
+				if ((tail.get() & OVERFLOW) != 0) {
+					overflow.addLast(obj);
+					overflowCount++;
+					return;
+				}
 			}
 		}
 	}
 
 	public T dequeue() {
-		synchronized (syncLock) {
-			{
-				T tmp = queue.getFirst();
-				queue.removeFirst();
-				return tmp;
-			}
+		T tmp = poll();
+		if (tmp == null) {
+			throw new NoSuchElementException();
 		}
+		return tmp;
 	}
 
 	public void dequeue(int n) {
-		synchronized (syncLock) {
-			{
-				for (int i = 0; i < n; i++) {
-					queue.removeFirst();
-				}
-			}
+		for (int i = 0; i < n; i++) {
+			dequeue();
 		}
 	}
 
 	public void clear() {
-		synchronized (syncLock) {
-			{
-				queue.clear();
-			}
+		reserved = 0;
+		while (poll() != null) {
+			// discard
 		}
 	}
 
+	@SuppressWarnings("unchecked")
 	public T[] copyToArray() {
-		synchronized (syncLock) {
-			{
-				return (T[]) queue.toArray();
-			}
-		}
+		return (T[]) peek(Integer.MAX_VALUE).toArray();
 	}
 
 	public ConcurrentQueue<T> initFromArray(List<T> initValues) {
-		this.queue = new LinkedList<T>();
-		this.queue.addAll(initValues);
+		clear();
+		for (T value : initValues) {
+			enqueue(value);
+		}
 
 		return this;
 	}
 
+	/**
+	 * Visits up to {@code max} elements, skipping the {@code skip} oldest. The
+	 * ring is visited before the overflow list, in the same order poll() uses:
+	 * while the overflow list is in use producers cannot claim ring slots.
+	 */
+	private int visit(int skip, int max, Consumer<? super T> consumer) {
+		int visited = 0;
+		long t = tail.get();
+		long end = t & ~OVERFLOW;
+		long pos = head.get() + skip;
+		for (; pos < end && visited < max; pos++, visited++) {
+			consumer.accept(awaitElement(pos));
+		}
+		if (visited < max && (t & OVERFLOW) != 0) {
+			long skipOverflow = pos - end;
+			synchronized (overflowLock) {
+				Iterator<T> it = overflow.iterator();
+				for (long i = 0; i < skipOverflow && it.hasNext(); i++) {
+					it.next();
+				}
+				for (; visited < max && it.hasNext(); visited++) {
+					consumer.accept(it.next());
+				}
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 * Removes the oldest element.
+	 *
+	 * @return the element, or {@code null} if the queue is empty.
+	 */
+	private T poll() {
+		long pos = head.get();
+		long t = tail.get();
+		if (pos < (t & ~OVERFLOW)) {
+			T tmp = awaitElement(pos);
+			int idx = (int) pos & mask;
+			buffer[idx] = null;
+			sequences.lazySet(idx, pos + buffer.length);
+			head.lazySet(pos + 1);
+			return tmp;
+		}
+		if ((t & OVERFLOW) == 0) {
+			return null;
+		}
+		synchronized (overflowLock) {
+			T tmp = overflow.pollFirst();
+			if (tmp != null) {
+				overflowCount--;
+			}
+			if (overflow.isEmpty()) {
+				// ring is empty and producers are blocked on overflowLock:
+				// safe to hand them back the ring
+				tail.set(tail.get() & ~OVERFLOW);
+			}
+			return tmp;
+		}
+	}
+
+	/**
+	 * Waits for the producer that claimed {@code pos} to publish its element.
+	 * The window between claiming and publishing is a couple of stores, so a
+	 * spin is enough.
+	 */
+	@SuppressWarnings("unchecked")
+	private T awaitElement(long pos) {
+		int idx = (int) pos & mask;
+		while (sequences.get(idx) != pos + 1) {
+			Thread.yield();
+		}
+		return (T) buffer[idx];
+	}
 }
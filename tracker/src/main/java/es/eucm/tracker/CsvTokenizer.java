@@ -0,0 +1,312 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a CSV line into fields without copying it: after {@link #next()},
+ * the current field is a view of the line, over a {@link CharSequence} or
+ * the UTF-8 bytes of a {@link ByteBuffer} (separators and escapes are ASCII,
+ * so bytes need not be decoded to find them). Commas escaped as {@code \,}
+ * belong to the field; any other backslash is an ordinary char.
+ * 
+ * Fields become strings only through {@link #string()}, unescaped in the same
+ * copy; numbers and booleans are parsed straight from the view.
+ */
+final class CsvTokenizer {
+
+	/** Powers of ten that are exact floats */
+	private static final float[] POWERS_OF_TEN = new float[11];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	/** Line being split, if it is text */
+	private CharSequence chars;
+
+	/** Line being split, if it is UTF-8 */
+	private ByteBuffer bytes;
+
+	/** End of the line */
+	private int limit;
+
+	/** Start of the next field; past the limit once all are read */
+	private int next;
+
+	/** Current field */
+	private int start, end;
+
+	/** True if the current field has escaped commas */
+	private boolean escaped;
+
+	/**
+	 * Splits {@code line} from its start.
+	 */
+	CsvTokenizer reset(CharSequence line) {
+		this.chars = line;
+		this.bytes = null;
+		this.next = 0;
+		this.limit = line.length();
+		this.start = this.end = 0;
+		return this;
+	}
+
+	/**
+	 * Splits the UTF-8 bytes of {@code line} from its position to its limit,
+	 * which are not changed.
+	 */
+	CsvTokenizer reset(ByteBuffer line) {
+		this.chars = null;
+		this.bytes = line;
+		this.next = line.position();
+		this.limit = line.limit();
+		this.start = this.end = next;
+		return this;
+	}
+
+	/**
+	 * Moves to the next field.
+	 * 
+	 * @return false if there are no fields left.
+	 */
+	boolean next() {
+		if (next > limit) {
+			return false;
+		}
+		start = next;
+		escaped = false;
+		int i = start;
+		for (; i < limit; i++) {
+			int c = charAt(i);
+			if (c == ',') {
+				break;
+			}
+			if (c == '\\' && i + 1 < limit && charAt(i + 1) == ',') {
+				escaped = true;
+				i++;
+			}
+		}
+		end = i;
+		next = i + 1;
+		return true;
+	}
+
+	/**
+	 * @return true if the current field and all those after it are empty, as
+	 *         when a line ends with separators.
+	 */
+	boolean isTrailingEmpty() {
+		if (start != end) {
+			return false;
+		}
+		for (int i = next; i < limit; i++) {
+			if (charAt(i) != ',') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the current field, unescaped.
+	 */
+	String string() {
+		if (chars != null) {
+			if (!escaped) {
+				return chars.subSequence(start, end).toString();
+			}
+			StringBuilder field = new StringBuilder(end - start);
+			for (int i = start; i < end; i++) {
+				char c = chars.charAt(i);
+				if (c != '\\' || i + 1 == end || chars.charAt(i + 1) != ',') {
+					field.append(c);
+				}
+			}
+			return field.toString();
+		}
+		String field;
+		if (bytes.hasArray()) {
+			field = new String(bytes.array(), bytes.arrayOffset() + start,
+					end - start, StandardCharsets.UTF_8);
+		} else {
+			byte[] copy = new byte[end - start];
+			for (int i = 0; i < copy.length; i++) {
+				copy[i] = bytes.get(start + i);
+			}
+			field = new String(copy, StandardCharsets.UTF_8);
+		}
+		return escaped ? field.replace("\\,", ",") : field;
+	}
+
+	/**
+	 * @return true if the current field is {@code value}, ignoring case.
+	 */
+	boolean equalsIgnoreCase(String value) {
+		if (escaped) {
+			return string().equalsIgnoreCase(value);
+		}
+		if (end - start != value.length()) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			int c = charAt(i);
+			char v = value.charAt(i - start);
+			if (c != v && Character.toLowerCase(c) != Character
+					.toLowerCase(v)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the current field, as a decimal long.
+	 * @throws NumberFormatException
+	 *             if it is not one.
+	 */
+	long parseLong() {
+		int i = start;
+		boolean negative = i < end && charAt(i) == '-';
+		if (negative || i < end && charAt(i) == '+') {
+			i++;
+		}
+		if (i == end) {
+			throw invalidNumber();
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw invalidNumber();
+			}
+			if (value < (Long.MIN_VALUE + digit) / 10) {
+				throw invalidNumber();
+			}
+			// accumulated negatively, as Long.MIN_VALUE has no positive
+			value = value * 10 - digit;
+		}
+		if (!negative) {
+			if (value == Long.MIN_VALUE) {
+				throw invalidNumber();
+			}
+			value = -value;
+		}
+		return value;
+	}
+
+	/**
+	 * @return the current field, as a float. Short decimals (such as most of
+	 *         those written by {@link Float#toString(float)}) are parsed from
+	 *         the view; any other text through {@link Float#parseFloat(String)}.
+	 * @throws NumberFormatException
+	 *             if it is not a float.
+	 */
+	float parseFloat() {
+		int i = start;
+		boolean negative = i < end && charAt(i) == '-';
+		if (negative || i < end && charAt(i) == '+') {
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean any = false;
+		boolean exact = true;
+		boolean fraction = false;
+		for (; i < end; i++) {
+			int c = charAt(i);
+			if (c == '.' && !fraction) {
+				fraction = true;
+				continue;
+			}
+			int digit = c - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			any = true;
+			if (digits < 18) {
+				mantissa = mantissa * 10 + digit;
+				if (mantissa != 0) {
+					digits++;
+				}
+				if (fraction) {
+					scale--;
+				}
+			} else {
+				exact &= digit == 0;
+				if (!fraction) {
+					scale++;
+				}
+			}
+		}
+		if (any && i < end && (charAt(i) == 'e' || charAt(i) == 'E')) {
+			i++;
+			boolean negativeExponent = i < end && charAt(i) == '-';
+			if (negativeExponent || i < end && charAt(i) == '+') {
+				i++;
+			}
+			int exponent = 0;
+			int first = i;
+			for (; i < end && exponent < 1000; i++) {
+				int digit = charAt(i) - '0';
+				if (digit < 0 || digit > 9) {
+					break;
+				}
+				exponent = exponent * 10 + digit;
+			}
+			any = i > first;
+			scale += negativeExponent ? -exponent : exponent;
+		}
+		// exact mantissa and power: rounded once, as Float.parseFloat does
+		if (!any || i != end || !exact || mantissa > 1 << 24 || scale < -10
+				|| scale > 10) {
+			return Float.parseFloat(string());
+		}
+		float value = scale < 0 ? mantissa / POWERS_OF_TEN[-scale]
+				: mantissa * POWERS_OF_TEN[scale];
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @return the current field, as a boolean.
+	 * @throws IllegalArgumentException
+	 *             if it is neither true nor false (ignoring case).
+	 */
+	boolean parseBoolean() {
+		if (equalsIgnoreCase("true")) {
+			return true;
+		}
+		if (equalsIgnoreCase("false")) {
+			return false;
+		}
+		throw new IllegalArgumentException("Not a valid boolean: " + string());
+	}
+
+	private int charAt(int i) {
+		return chars != null ? chars.charAt(i) : bytes.get(i);
+	}
+
+	private NumberFormatException invalidNumber() {
+		return new NumberFormatException(
+				"For input string: \"" + string() + "\"");
+	}
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import es.eucm.tracker.exceptions.UnmarshallingException;
+
+/**
+ * Reads the traces of a CSV log or backup file, one line at a time:
+ * 
+ * <pre>
+ * try (CsvTraceReader reader = new CsvTraceReader(in)) {
+ * 	reader.stream().filter(...).forEach(...);
+ * }
+ * </pre>
+ * 
+ * Lines are read into a reused buffer and unmarshalled in a single pass, so
+ * memory does not grow with the size of the file; lines of bytes are split
+ * into fields without decoding them first. Empty lines are ignored;
+ * lines that cannot be unmarshalled stop the iteration with an
+ * {@link UnmarshallingException}, unless they are skipped with
+ * {@link #skipInvalid(Consumer)}. I/O errors are thrown as
+ * {@link UncheckedIOException}s.
+ */
+public class CsvTraceReader implements Iterator<TrackerEvent>, Closeable {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final CsvTrackerEventUnmarshaller unmarshaller = new CsvTrackerEventUnmarshaller();
+
+	private final CsvTokenizer fields = new CsvTokenizer();
+
+	/** Source of chars; null when reading bytes */
+	private final Reader reader;
+
+	/** Source of UTF-8 bytes; null when reading chars */
+	private final InputStream in;
+
+	private char[] chars;
+
+	private byte[] bytes;
+
+	/** Unread part of {@link #chars} or {@link #bytes} */
+	private int offset, limit;
+
+	/** Line being read, when reading chars */
+	private StringBuilder line;
+
+	/** Line being read, when reading bytes */
+	private byte[] lineBytes;
+
+	private int lineLength;
+
+	/** View of {@link #lineBytes} */
+	private ByteBuffer lineBuffer;
+
+	/** Bytes (or chars) of the lines read */
+	private long position;
+
+	private boolean partialLine = true;
+
+	private Consumer<? super UnmarshallingException> invalid;
+
+	private TrackerEvent next;
+
+	public CsvTraceReader(Reader reader) {
+		this.reader = reader;
+		this.in = null;
+		this.chars = new char[BUFFER_SIZE];
+		this.line = new StringBuilder(256);
+	}
+
+	/**
+	 * @param in
+	 *            UTF-8 text.
+	 */
+	public CsvTraceReader(InputStream in) {
+		this.reader = null;
+		this.in = in;
+		this.bytes = new byte[BUFFER_SIZE];
+		this.lineBytes = new byte[256];
+		this.lineBuffer = ByteBuffer.wrap(lineBytes);
+	}
+
+	/**
+	 * Skips the lines that cannot be unmarshalled, passing their errors to
+	 * {@code invalid}.
+	 */
+	public CsvTraceReader skipInvalid(
+			Consumer<? super UnmarshallingException> invalid) {
+		this.invalid = invalid;
+		return this;
+	}
+
+	/**
+	 * @param partialLine
+	 *            false to ignore a last line without line separator, e.g.
+	 *            because it is still being written.
+	 */
+	void setPartialLine(boolean partialLine) {
+		this.partialLine = partialLine;
+	}
+
+	/**
+	 * @return bytes (or chars, if reading a {@link Reader}) of the lines
+	 *         read; right after {@link #next()}, the end of the line of the
+	 *         event returned.
+	 */
+	long getPosition() {
+		return position;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null) {
+			boolean read;
+			try {
+				read = reader != null ? readChars() : readBytes();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (!read) {
+				return false;
+			}
+			try {
+				next = unmarshaller.unmarshal(fields);
+			} catch (RuntimeException e) {
+				UnmarshallingException error = e instanceof UnmarshallingException
+						? (UnmarshallingException) e
+						: new UnmarshallingException("Can not parse trace", e);
+				if (invalid == null) {
+					throw error;
+				}
+				invalid.accept(error);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public TrackerEvent next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		TrackerEvent event = next;
+		next = null;
+		return event;
+	}
+
+	/**
+	 * @return the remaining events; closing the stream closes this reader.
+	 */
+	public Stream<TrackerEvent> stream() {
+		return StreamSupport
+				.stream(Spliterators.spliteratorUnknownSize(this,
+						Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(() -> {
+					try {
+						close();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (reader != null) {
+			reader.close();
+		} else {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the next line that is not empty into {@link #fields}.
+	 * 
+	 * @return false at the end.
+	 */
+	private boolean readChars() throws IOException {
+		line.setLength(0);
+		for (;;) {
+			if (offset == limit) {
+				offset = 0;
+				limit = Math.max(0, reader.read(chars));
+				if (limit == 0) {
+					if (!partialLine || line.length() == 0) {
+						return false;
+					}
+					position += line.length();
+					fields.reset(line);
+					return true;
+				}
+			}
+			int start = offset;
+			while (offset < limit && chars[offset] != '\n') {
+				offset++;
+			}
+			line.append(chars, start, offset - start);
+			if (offset < limit) {
+				offset++;
+				position += line.length() + 1;
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(--length);
+				}
+				if (length > 0) {
+					fields.reset(line);
+					return true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the next line that is not empty into {@link #fields}, as UTF-8.
+	 * 
+	 * @return false at the end.
+	 */
+	private boolean readBytes() throws IOException {
+		lineLength = 0;
+		for (;;) {
+			if (offset == limit) {
+				offset = 0;
+				limit = Math.max(0, in.read(bytes));
+				if (limit == 0) {
+					if (!partialLine || lineLength == 0) {
+						return false;
+					}
+					position += lineLength;
+					return view(lineLength);
+				}
+			}
+			int start = offset;
+			while (offset < limit && bytes[offset] != '\n') {
+				offset++;
+			}
+			int n = offset - start;
+			if (lineLength + n > lineBytes.length) {
+				lineBytes = Arrays.copyOf(lineBytes,
+						Math.max(lineLength + n, lineBytes.length * 2));
+				lineBuffer = ByteBuffer.wrap(lineBytes);
+			}
+			System.arraycopy(bytes, start, lineBytes, lineLength, n);
+			lineLength += n;
+			if (offset < limit) {
+				offset++;
+				position += lineLength + 1;
+				int length = lineLength;
+				if (length > 0 && lineBytes[length - 1] == '\r') {
+					length--;
+				}
+				if (length > 0) {
+					return view(length);
+				}
+				lineLength = 0;
+			}
+		}
+	}
+
+	private boolean view(int length) {
+		lineBuffer.clear();
+		lineBuffer.limit(length);
+		fields.reset(lineBuffer);
+		return true;
+	}
+}
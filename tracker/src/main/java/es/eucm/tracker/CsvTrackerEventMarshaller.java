@@ -17,35 +17,53 @@ package es.eucm.tracker;
 
 import static es.eucm.tracker.TrackerUtils.notNullEmptyOrNan;
 
+import java.io.IOException;
 import java.util.Map;
 
 import es.eucm.tracker.TrackerEvent.TraceObject;
 import es.eucm.tracker.TrackerEvent.TraceResult;
 
+/**
+ * Marshals events as CSV lines, appending straight into the caller's
+ * {@link StringBuilder}: fields are escaped while they are copied, and
+ * numbers are appended without converting them to strings first.
+ */
 class CsvTrackerEventMarshaller implements TrackerEventMarshaller {
 
 	@Override
 	public String marshal(TrackerEvent event, TrackerAsset tracker) {
+		StringBuilder buffer = new StringBuilder(128);
+		marshal(event, buffer);
+		return buffer.toString();
+	}
+
+	@Override
+	public void marshal(TrackerEvent event, TrackerAsset tracker,
+			Appendable out) throws IOException {
+		if (out instanceof StringBuilder) {
+			marshal(event, (StringBuilder) out);
+		} else {
+			out.append(marshal(event, tracker));
+		}
+	}
 
-		StringBuilder buffer = new StringBuilder();
+	private void marshal(TrackerEvent event, StringBuilder buffer) {
 		buffer.append(event.getTimeStamp().toEpochMilli());
-		buffer.append(",");
+		buffer.append(',');
 		verbToCsv(buffer, event.getEvent());
-		buffer.append(",");
+		buffer.append(',');
 		targetToCsv(buffer, event.getTarget());
 		resultToCsv(buffer, event.getResult());
-
-		return buffer.toString();
 	}
 
 	private void verbToCsv(StringBuilder buffer, TraceVerb verb) {
-		buffer.append(escapeString(verb.getStringVerb()));
+		escape(buffer, verb.getStringVerb(), false);
 	}
 
 	private void targetToCsv(StringBuilder buffer, TraceObject target) {
-		buffer.append(escapeString(target.getType()));
-		buffer.append(",");
-		buffer.append(escapeString(target.getID()));
+		escape(buffer, target.getType(), false);
+		buffer.append(',');
+		escape(buffer, target.getID(), false);
 	}
 
 	private void resultToCsv(StringBuilder buffer, TraceResult result) {
@@ -56,73 +74,94 @@ class CsvTrackerEventMarshaller implements TrackerEventMarshaller {
 		Boolean success = result.getSuccess();
 		if (success != null) {
 			buffer.append(",success,");
-			buffer.append(Boolean.toString(success));
+			buffer.append(success.booleanValue());
 		}
 		Boolean completion = result.getCompletion();
 		if (completion != null) {
 			buffer.append(",completion,");
-			buffer.append(Boolean.toString(completion));
+			buffer.append(completion.booleanValue());
 		}
 		String response = result.getResponse();
 		if (notNullEmptyOrNan(response)) {
 			buffer.append(",response,");
-			buffer.append(escapeString(response));
+			escape(buffer, response, false);
 		}
 		Float score = result.getScore();
 		if (score != null) {
 			buffer.append(",score,");
-			buffer.append(decimalToString(score));
+			buffer.append(score.floatValue());
 		}
 		Map<String, Object> extensions = result.getExtensions();
 		if (extensions != null) {
 			for (Map.Entry<String, Object> extension : extensions.entrySet()) {
-				String key = extension.getKey();
 				Object value = extension.getValue();
-				buffer.append(",");
-				buffer.append(escapeString(key));
-				buffer.append(",");
-				if (value != null) {
-					if (value instanceof String) {
-						buffer.append(escapeString((String) value));
-					} else if ((value instanceof Float)) {
-						buffer.append(decimalToString((Float) value));
-					} else if ((value instanceof Double)) {
-						buffer.append(decimalToString((Double) value));
-					} else if ((value instanceof Integer)) {
-						buffer.append(integerToString((Integer) value));
-					} else if (value instanceof Map) {
-						Map<?, ?> map = (Map<?, ?>) value;
-						StringBuilder inner = new StringBuilder();
-						int count = 0;
-						for (Map.Entry<?, ?> e : map.entrySet()) {
-							if (count > 0) {
-								buffer.append("-");
-							}
-							inner.append(e.getKey()).append("=").append(
-									e.getValue().toString().toLowerCase());
-							count++;
+				buffer.append(',');
+				escape(buffer, extension.getKey(), false);
+				buffer.append(',');
+				if (value instanceof Map) {
+					// key=value pairs, separated by '-'
+					boolean first = true;
+					for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+						if (!first) {
+							buffer.append('-');
 						}
-					} else {
-						buffer.append(String.valueOf(value));
+						valueToCsv(buffer, e.getKey(), false);
+						buffer.append('=');
+						valueToCsv(buffer, e.getValue(), true);
+						first = false;
 					}
+				} else if (value != null) {
+					valueToCsv(buffer, value, false);
 				}
 			}
 		}
 	}
 
-	private String escapeString(String string) {
-		return string.replace(",", "\\,");
-	}
-
-	private String decimalToString(double value) {
-		return Double.toString(value);
-	}
-
-	private String decimalToString(float value) {
-		return Float.toString(value);
+	private void valueToCsv(StringBuilder buffer, Object value,
+			boolean lowerCase) {
+		if (value instanceof Float) {
+			buffer.append(((Float) value).floatValue());
+		} else if (value instanceof Double) {
+			buffer.append(((Double) value).doubleValue());
+		} else if (value instanceof Integer || value instanceof Long
+				|| value instanceof Short || value instanceof Byte) {
+			buffer.append(((Number) value).longValue());
+		} else if (value instanceof Boolean) {
+			buffer.append(((Boolean) value).booleanValue());
+		} else if (value instanceof CharSequence) {
+			escape(buffer, (CharSequence) value, lowerCase);
+		} else {
+			escape(buffer, String.valueOf(value), lowerCase);
+		}
 	}
 
-	private String integerToString(int value) {
-		return Integer.toString(value);
+	/**
+	 * Appends {@code string} with its commas escaped, in a single pass.
+	 */
+	private void escape(StringBuilder buffer, CharSequence string,
+			boolean lowerCase) {
+		if (string == null) {
+			buffer.append("null");
+			return;
+		}
+		int length = string.length();
+		if (lowerCase) {
+			for (int i = 0; i < length; i++) {
+				char c = string.charAt(i);
+				if (c == ',') {
+					buffer.append('\\');
+				}
+				buffer.append(Character.toLowerCase(c));
+			}
+			return;
+		}
+		int last = 0;
+		for (int i = 0; i < length; i++) {
+			if (string.charAt(i) == ',') {
+				buffer.append(string, last, i).append("\\,");
+				last = i + 1;
+			}
+		}
+		buffer.append(string, last, length);
 	}
 }
@@ -40,25 +40,21 @@ public class CsvTrackerEventUnmarshaller implements TrackerEventUnmarshaller {
 				GameObjectTracker.TrackedGameObject.class));
 	}
 
-	private static boolean parseBoolean(String s) {
-		boolean trueValue = ((s != null) && s.equalsIgnoreCase("true"));
-		boolean falseValue = ((s != null) && s.equalsIgnoreCase("false"));
-		if (!(trueValue || falseValue)) {
-			throw new UnmarshallingException("Not a valid boolean: " + s);
+	private static boolean parseBoolean(CsvTokenizer fields) {
+		try {
+			return fields.parseBoolean();
+		} catch (IllegalArgumentException e) {
+			throw new UnmarshallingException(e.getMessage());
 		}
-		return trueValue;
 	}
 
-	private static float parseFloat(String s) {
-		float value = 0.0f;
-
+	private static float parseFloat(CsvTokenizer fields) {
 		try {
-			value = Float.parseFloat(s);
-		} catch (NullPointerException | NumberFormatException e) {
-			throw new UnmarshallingException("Not a valid float: " + s);
+			return fields.parseFloat();
+		} catch (NumberFormatException e) {
+			throw new UnmarshallingException(
+					"Not a valid float: " + fields.string());
 		}
-
-		return value;
 	}
 
 	@Override
@@ -71,45 +67,62 @@ public class CsvTrackerEventUnmarshaller implements TrackerEventUnmarshaller {
 			throw new IllegalArgumentException("event must not be emtpy");
 		}
 
-		String[] components = event.split(",");
-		if (components.length < 4) {
+		return unmarshal(new CsvTokenizer().reset(event));
+	}
+
+	/**
+	 * Unmarshals the fields of a line in a single pass. Only the fields kept
+	 * as strings are copied; the timestamp and the values of known
+	 * extensions are parsed in place.
+	 */
+	TrackerEvent unmarshal(CsvTokenizer fields) {
+		long millis = 0;
+		NumberFormatException invalidTime = null;
+		fields.next();
+		try {
+			millis = fields.parseLong();
+		} catch (NumberFormatException e) {
+			invalidTime = e;
+		}
+		String verbId = fields.next() ? fields.string() : null;
+		String type = fields.next() ? fields.string() : null;
+		String id = fields.next() ? fields.string() : null;
+		if (id == null) {
 			throw new UnmarshallingException(
 					"At least 4 values are required: <timestamp>,<verb>,<objectType>,<objetID>");
 		}
 
-		Instant timestamp = null;
-		try {
-			long millis = Long.parseLong(components[0]);
-			if (millis < 0) {
-				throw new UnmarshallingException(
-						"timestamp must not be negative: " + components[0]);
-			}
-			timestamp = Instant.ofEpochMilli(millis);
-		} catch (NumberFormatException e) {
-			throw new UnmarshallingException("timestamp is not valid", e);
+		if (invalidTime != null) {
+			throw new UnmarshallingException("timestamp is not valid",
+					invalidTime);
 		}
+		if (millis < 0) {
+			throw new UnmarshallingException(
+					"timestamp must not be negative: " + millis);
+		}
+		Instant timestamp = Instant.ofEpochMilli(millis);
 
 		TraceVerb verb = null;
 		try {
-			verb = new TraceVerb(components[1]);
+			verb = new TraceVerb(verbId);
 		} catch (TrackerException e) {
 			throw new UnmarshallingException("Can not parse verb", e);
 		}
 
 		TrackerEvent.TraceObject object = null;
-		XApiConstant objectType = OBJECT_TYPES.get(components[2]);
+		XApiConstant objectType = OBJECT_TYPES.get(type);
 		if (objectType == null) {
 			throw new UnmarshallingException(
-					"object type is not recognized: " + components[2]);
+					"object type is not recognized: " + type);
 		}
 
 		try {
-			object = new TrackerEvent.TraceObject(objectType, components[3]);
+			object = new TrackerEvent.TraceObject(objectType, id);
 		} catch (TrackerException e) {
 			throw new UnmarshallingException("Can not parse target object", e);
 		}
 
-		Map<String, Object> extensions = parseExtensions(components, 4);
+		Map<String, Object> extensions = parseExtensions(fields);
 
 		TrackerEvent te = new TrackerEvent(timestamp);
 		te.setEvent(verb);
@@ -121,22 +134,28 @@ public class CsvTrackerEventUnmarshaller implements TrackerEventUnmarshaller {
 		return te;
 	}
 
-	private Map<String, Object> parseExtensions(String[] values, int startIdx) {
+	/**
+	 * Reads key,value pairs; a key without value is ignored, as is one whose
+	 * value is only followed by empty fields (trailing separators).
+	 */
+	private Map<String, Object> parseExtensions(CsvTokenizer fields) {
 		Map<String, Object> extensions = new HashMap<>();
-		for (int i = startIdx; i + 1 < values.length; i += 2) {
-			String id = values[i];
-			String value = values[i + 1];
+		while (fields.next()) {
+			String id = fields.string();
+			if (!fields.next() || fields.isTrailingEmpty()) {
+				break;
+			}
 			switch (id.toLowerCase()) {
 			case "success":
 			case "completion":
-				extensions.put(id, parseBoolean(value));
+				extensions.put(id, parseBoolean(fields));
 				break;
 			case "score":
-				extensions.put(id, parseFloat(value));
+				extensions.put(id, parseFloat(fields));
 				break;
 			case "response":
 			default:
-				extensions.put(id, value);
+				extensions.put(id, fields.string());
 				break;
 			}
 		}
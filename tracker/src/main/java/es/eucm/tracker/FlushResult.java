@@ -0,0 +1,88 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+/**
+ * Outcome of a flush.
+ *
+ * @see TrackerAsset#flushAsync()
+ */
+public class FlushResult {
+
+	private int sentTraces;
+
+	private long sentBytes;
+
+	private int failedRequests;
+
+	private int pendingTraces;
+
+	/**
+	 * @return traces sent (or stored, with local storage).
+	 */
+	public int getSentTraces() {
+		return sentTraces;
+	}
+
+	/**
+	 * @return UTF-8 bytes of the traces sent.
+	 */
+	public long getSentBytes() {
+		return sentBytes;
+	}
+
+	/**
+	 * @return requests that failed; their traces are kept for the next flush.
+	 */
+	public int getFailedRequests() {
+		return failedRequests;
+	}
+
+	/**
+	 * @return traces still waiting to be sent after the flush, whether pending
+	 *         (in memory or spilled) or unsent for lack of a login.
+	 */
+	public int getPendingTraces() {
+		return pendingTraces;
+	}
+
+	/**
+	 * @return true if no traces were left waiting to be sent.
+	 */
+	public boolean isComplete() {
+		return pendingTraces == 0;
+	}
+
+	void addSent(int traces, long bytes) {
+		sentTraces += traces;
+		sentBytes += bytes;
+	}
+
+	void addFailure() {
+		failedRequests++;
+	}
+
+	void setPendingTraces(int pendingTraces) {
+		this.pendingTraces = pendingTraces;
+	}
+
+	@Override
+	public String toString() {
+		return "FlushResult [sentTraces=" + sentTraces + ", sentBytes="
+				+ sentBytes + ", failedRequests=" + failedRequests
+				+ ", pendingTraces=" + pendingTraces + "]";
+	}
+}
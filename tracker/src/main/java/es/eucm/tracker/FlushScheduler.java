@@ -0,0 +1,118 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs flushes on a dedicated thread, either when requested (e.g. a full
+ * batch is waiting) or when the maximum latency expires.
+ */
+class FlushScheduler implements FlushTrigger, Runnable {
+
+	private final Runnable flush;
+
+	private final long maxLatencyNanos;
+
+	private final AtomicBoolean requested = new AtomicBoolean();
+
+	private volatile boolean running;
+
+	private volatile Thread thread;
+
+	/**
+	 * @param flush
+	 *            action to run on the flush thread; must not throw.
+	 * @param maxLatencyMillis
+	 *            maximum time between two flushes.
+	 */
+	FlushScheduler(Runnable flush, long maxLatencyMillis) {
+		this.flush = flush;
+		this.maxLatencyNanos = TimeUnit.MILLISECONDS
+				.toNanos(Math.max(1, maxLatencyMillis));
+	}
+
+	/**
+	 * Starts the flush thread.
+	 */
+	synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "tracker-flush");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Asks for a flush as soon as possible. Lock-free, so it can be called
+	 * from {@link TrackerAsset#trace(TrackerEvent)}.
+	 */
+	@Override
+	public void request() {
+		Thread t = thread;
+		if (t != null && requested.compareAndSet(false, true)) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Stops the flush thread, waiting for an ongoing flush to finish.
+	 */
+	@Override
+	public synchronized void stop() {
+		Thread t = thread;
+		if (t == null) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(t);
+		if (t != Thread.currentThread()) {
+			boolean interrupted = false;
+			while (t.isAlive()) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		thread = null;
+	}
+
+	boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			if (!requested.getAndSet(false)) {
+				LockSupport.parkNanos(this, maxLatencyNanos);
+				requested.set(false);
+			}
+			if (running) {
+				flush.run();
+			}
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+/**
+ * Runs flushes of a tracker in the background.
+ *
+ * @see FlushScheduler
+ * @see TrackerSessionFactory
+ */
+interface FlushTrigger {
+
+	/**
+	 * Asks for a flush as soon as possible. Must not block, so it can be
+	 * called from {@link TrackerAsset#trace(TrackerEvent)}.
+	 */
+	void request();
+
+	/**
+	 * Stops flushing in the background.
+	 */
+	void stop();
+}
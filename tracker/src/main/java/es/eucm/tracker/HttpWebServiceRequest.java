@@ -0,0 +1,246 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import eu.rageproject.asset.manager.IBridge;
+import eu.rageproject.asset.manager.IWebServiceRequest;
+import eu.rageproject.asset.manager.RequestResponse;
+import eu.rageproject.asset.manager.RequestSettings;
+
+/**
+ * {@link IWebServiceRequest} over persistent HTTP connections.
+ *
+ * Connections are reused through the JDK keep-alive cache: responses are
+ * always read to the end and connections are only closed on errors. At most
+ * {@code maxConnections} requests run at a time; the JDK keeps up to
+ * {@code http.maxConnections} (5 by default) idle connections per host.
+ * Request bodies larger than {@link #setStreamingThreshold(int)} bytes are
+ * streamed as UTF-8 without buffering them whole, and responses are truncated
+ * to {@link #setMaxResponseSize(int)} bytes. Bodies written through
+ * {@link StreamingWebServiceRequest} (e.g. compressed batches) are buffered
+ * as bytes, to learn their length, and then sent the same way.
+ *
+ * It can be used as the tracker's bridge, or called from another bridge.
+ */
+public class HttpWebServiceRequest
+		implements IBridge, IWebServiceRequest, StreamingWebServiceRequest {
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 5;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Semaphore connections;
+
+	private int connectTimeout = 10000;
+
+	private int readTimeout = 30000;
+
+	private int maxResponseSize = 64 * 1024;
+
+	private int streamingThreshold = 1024 * 1024;
+
+	public HttpWebServiceRequest() {
+		this(DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * @param maxConnections
+	 *            max concurrent requests.
+	 */
+	public HttpWebServiceRequest(int maxConnections) {
+		this.connections = new Semaphore(Math.max(1, maxConnections), true);
+	}
+
+	/**
+	 * @param connectTimeout
+	 *            ms to wait for a connection (from the pool, then to the
+	 *            server).
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @param readTimeout
+	 *            ms to wait for the response.
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * @param maxResponseSize
+	 *            max bytes of response body kept; the rest is discarded.
+	 */
+	public void setMaxResponseSize(int maxResponseSize) {
+		this.maxResponseSize = maxResponseSize;
+	}
+
+	/**
+	 * @param streamingThreshold
+	 *            bytes of request body above which it is streamed instead of
+	 *            buffered. Streamed bodies go in separate packets from the
+	 *            headers, and Nagle's algorithm holds the last one back on a
+	 *            reused connection (about a ms on loopback), so only large
+	 *            bodies are worth streaming.
+	 */
+	public void setStreamingThreshold(int streamingThreshold) {
+		this.streamingThreshold = streamingThreshold;
+	}
+
+	@Override
+	public RequestResponse WebServiceRequest(RequestSettings requestSettings) {
+		String body = requestSettings.body;
+		if (body == null) {
+			return execute(requestSettings, null, 0);
+		}
+		return execute(requestSettings, out -> {
+			try (Writer writer = new OutputStreamWriter(out,
+					StandardCharsets.UTF_8)) {
+				writer.write(body);
+			}
+		}, TrackerUtils.utf8Length(body));
+	}
+
+	@Override
+	public RequestResponse WebServiceRequest(RequestSettings requestSettings,
+			BodyWriter body) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(BUFFER_SIZE);
+		try {
+			body.writeTo(bytes);
+		} catch (IOException e) {
+			RequestResponse response = new RequestResponse(requestSettings);
+			response.body = "";
+			response.responseCode = -1;
+			response.responsMessage = e.toString();
+			return response;
+		}
+		return execute(requestSettings, bytes::writeTo, bytes.size());
+	}
+
+	/**
+	 * @param body
+	 *            writes the request body, or null if there is none.
+	 * @param length
+	 *            bytes written by {@code body}.
+	 */
+	private RequestResponse execute(RequestSettings requestSettings,
+			BodyWriter body, long length) {
+		RequestResponse response = new RequestResponse(requestSettings);
+		response.body = "";
+		try {
+			if (!connections.tryAcquire(connectTimeout,
+					TimeUnit.MILLISECONDS)) {
+				response.responseCode = -1;
+				response.responsMessage = "No connection available";
+				return response;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			response.responseCode = -1;
+			response.responsMessage = "Interrupted";
+			return response;
+		}
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) requestSettings.uri.toURL()
+					.openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			connection.setUseCaches(false);
+			connection.setRequestMethod(requestSettings.method.toUpperCase());
+			Map<String, String> headers = requestSettings.requestHeaders;
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				connection.setRequestProperty(header.getKey(),
+						header.getValue());
+			}
+			if (body != null && !"GET".equals(connection.getRequestMethod())) {
+				connection.setDoOutput(true);
+				if (length > streamingThreshold) {
+					connection.setFixedLengthStreamingMode(length);
+				}
+				try (OutputStream out = connection.getOutputStream()) {
+					body.writeTo(out);
+				}
+			}
+			response.responseCode = connection.getResponseCode();
+			if (response.responseCode >= 400) {
+				response.body = read(connection, connection.getErrorStream());
+				response.responsMessage = response.body;
+			} else {
+				response.body = read(connection, connection.getInputStream());
+			}
+		} catch (UnknownHostException e) {
+			response.responseCode = -1;
+			response.responsMessage = "Unknown host: "
+					+ requestSettings.uri.getHost();
+		} catch (IOException | RuntimeException e) {
+			response.responseCode = -1;
+			response.responsMessage = e.toString();
+			if (connection != null) {
+				// the connection may be unusable: do not reuse it
+				connection.disconnect();
+			}
+		} finally {
+			connections.release();
+		}
+		return response;
+	}
+
+	/**
+	 * Reads a response to the end, so that the connection can be reused,
+	 * keeping up to maxResponseSize bytes.
+	 */
+	private String read(HttpURLConnection connection, InputStream in)
+			throws IOException {
+		if (in == null) {
+			return "";
+		}
+		long length = connection.getContentLengthLong();
+		ByteArrayOutputStream body = new ByteArrayOutputStream(
+				(int) Math.max(0, Math.min(length < 0 ? 512 : length,
+						maxResponseSize)));
+		long discarded = 0;
+		try (InputStream stream = in) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = stream.read(buffer)) != -1) {
+				int kept = Math.min(n, maxResponseSize - body.size());
+				body.write(buffer, 0, kept);
+				discarded += n - kept;
+				if (discarded > maxResponseSize) {
+					// not worth reading to the end to keep the connection
+					connection.disconnect();
+					break;
+				}
+			}
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
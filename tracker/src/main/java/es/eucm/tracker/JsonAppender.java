@@ -0,0 +1,178 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Writes JSON values straight to an {@link Appendable}, with the same output
+ * as {@link TrackerAsset#gson}: HTML-safe string escaping, numbers as
+ * {@link Number#toString()} and null map entries skipped. Types without a
+ * JSON counterpart are handed to gson.
+ */
+final class JsonAppender {
+
+	private static final String[] REPLACEMENT_CHARS = new String[128];
+
+	static {
+		for (int c = 0; c < 0x20; c++) {
+			REPLACEMENT_CHARS[c] = String.format("\\u%04x", c);
+		}
+		REPLACEMENT_CHARS['"'] = "\\\"";
+		REPLACEMENT_CHARS['\\'] = "\\\\";
+		REPLACEMENT_CHARS['\t'] = "\\t";
+		REPLACEMENT_CHARS['\b'] = "\\b";
+		REPLACEMENT_CHARS['\n'] = "\\n";
+		REPLACEMENT_CHARS['\r'] = "\\r";
+		REPLACEMENT_CHARS['\f'] = "\\f";
+		REPLACEMENT_CHARS['<'] = "\\u003c";
+		REPLACEMENT_CHARS['>'] = "\\u003e";
+		REPLACEMENT_CHARS['&'] = "\\u0026";
+		REPLACEMENT_CHARS['='] = "\\u003d";
+		REPLACEMENT_CHARS['\''] = "\\u0027";
+	}
+
+	private JsonAppender() {
+	}
+
+	/**
+	 * Writes a quoted string; null is written as "null", as string
+	 * concatenation does.
+	 */
+	static void string(Appendable out, CharSequence value) throws IOException {
+		out.append('"');
+		escape(out, value);
+		out.append('"');
+	}
+
+	/**
+	 * Writes the contents of a string, without quotes.
+	 */
+	static void escape(Appendable out, CharSequence value) throws IOException {
+		if (value == null) {
+			out.append("null");
+			return;
+		}
+		int length = value.length();
+		int last = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			String replacement;
+			if (c < 128) {
+				replacement = REPLACEMENT_CHARS[c];
+				if (replacement == null) {
+					continue;
+				}
+			} else if (c == '\u2028') {
+				replacement = "\\u2028";
+			} else if (c == '\u2029') {
+				replacement = "\\u2029";
+			} else {
+				continue;
+			}
+			if (last < i) {
+				out.append(value, last, i);
+			}
+			out.append(replacement);
+			last = i + 1;
+		}
+		if (last < length) {
+			out.append(value, last, length);
+		}
+	}
+
+	/**
+	 * Writes {@code "name":}.
+	 */
+	static void name(Appendable out, String name) throws IOException {
+		string(out, name);
+		out.append(':');
+	}
+
+	/**
+	 * Writes any value gson would write for it.
+	 */
+	static void value(Appendable out, Object value) throws IOException {
+		if (value == null) {
+			out.append("null");
+		} else if (value instanceof CharSequence
+				|| value instanceof Character) {
+			string(out, value.toString());
+		} else if (value instanceof Boolean) {
+			out.append(value.toString());
+		} else if (value instanceof Number) {
+			number(out, (Number) value);
+		} else if (value instanceof Map) {
+			object(out, (Map<?, ?>) value);
+		} else if (value instanceof Collection) {
+			out.append('[');
+			boolean first = true;
+			for (Object item : (Collection<?>) value) {
+				if (!first) {
+					out.append(',');
+				}
+				value(out, item);
+				first = false;
+			}
+			out.append(']');
+		} else if (value.getClass().isArray()) {
+			out.append('[');
+			for (int i = 0, n = Array.getLength(value); i < n; i++) {
+				if (i > 0) {
+					out.append(',');
+				}
+				value(out, Array.get(value, i));
+			}
+			out.append(']');
+		} else {
+			TrackerAsset.gson.toJson(value, value.getClass(), out);
+		}
+	}
+
+	/**
+	 * Writes a map as an object, skipping null values.
+	 */
+	static void object(Appendable out, Map<?, ?> map) throws IOException {
+		out.append('{');
+		boolean first = true;
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			if (entry.getValue() == null) {
+				continue;
+			}
+			if (!first) {
+				out.append(',');
+			}
+			name(out, String.valueOf(entry.getKey()));
+			value(out, entry.getValue());
+			first = false;
+		}
+		out.append('}');
+	}
+
+	private static void number(Appendable out, Number value)
+			throws IOException {
+		if ((value instanceof Float || value instanceof Double)
+				&& (Double.isNaN(value.doubleValue())
+						|| Double.isInfinite(value.doubleValue()))) {
+			throw new IllegalArgumentException(value
+					+ " is not a valid double value as per JSON specification.");
+		}
+		out.append(value.toString());
+	}
+}
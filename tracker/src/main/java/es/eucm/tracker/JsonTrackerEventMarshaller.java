@@ -18,6 +18,8 @@ package es.eucm.tracker;
 import static es.eucm.tracker.TrackerUtils.complain;
 import static es.eucm.tracker.TrackerUtils.notNullEmptyOrNan;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.format.DateTimeFormatter;
 import java.util.Collections;
 import java.util.HashMap;
@@ -50,9 +52,228 @@ class JsonTrackerEventMarshaller implements TrackerEventMarshaller {
 				.buildXApiMap(GameObjectTracker.TrackedGameObject.class));
 	}
 
+	/** Rendered {@code "verb":{"id":"..."}}, by verb */
+	private final Map<String, String> verbFragments = new HashMap<>();
+
+	/**
+	 * Rendered {@code "target":{"definition":{"type":"..."},"id":"}, by
+	 * target type
+	 */
+	private final Map<String, String> targetFragments = new HashMap<>();
+
+	/** Rendered actor of the last statement */
+	private volatile ActorFragment actorFragment = new ActorFragment(null,
+			null);
+
+	JsonTrackerEventMarshaller() {
+		try {
+			for (Map.Entry<String, String> verb : xApiVerbs.entrySet()) {
+				verbFragments.put(verb.getKey(),
+						renderVerb(new StringBuilder(), verb.getValue())
+								.toString());
+			}
+			for (Map.Entry<String, String> type : objectIds.entrySet()) {
+				targetFragments.put(type.getKey(),
+						renderTarget(new StringBuilder(), type.getValue())
+								.toString());
+			}
+		} catch (IOException e) {
+			// not thrown by StringBuilder
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	@Override
 	public String marshal(TrackerEvent event, TrackerAsset tracker) {
-		return TrackerAsset.gson.toJson(toMap(event, tracker), Map.class);
+		StringBuilder out = new StringBuilder(512);
+		try {
+			marshal(event, tracker, out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Writes the same statement as {@link #toMap(TrackerEvent, TrackerAsset)}
+	 * serialized by gson, token by token, without building maps. The actor,
+	 * verb and target type come from pre-rendered fragments. Nothing is
+	 * written if the target type is refused (in strict mode).
+	 */
+	@Override
+	public void marshal(TrackerEvent event, TrackerAsset tracker,
+			Appendable out) throws IOException {
+		String verb = verbFragments.get(event.getEvent().getStringVerb());
+		String target = targetFragments.get(event.getTarget().getType());
+		if (target == null) {
+			// complains about the unknown type
+			target = renderTarget(new StringBuilder(),
+					getTargetType(event.getTarget())).toString();
+		}
+		ActorFragment actor = getActorFragment(tracker);
+
+		out.append(actor.json);
+		if (verb != null) {
+			out.append(verb);
+		} else {
+			renderVerb(out, getVerbId(event.getEvent()));
+		}
+		out.append(',').append(target);
+		if (actor.actor != null) {
+			out.append(actor.objectId);
+		}
+		JsonAppender.escape(out, event.getTarget().getID());
+		out.append("\"}");
+
+		writeResult(out, event.getResult());
+
+		out.append(',');
+		JsonAppender.name(out, "timestamp");
+		out.append('"');
+		TIMESTAMP_FORMAT.formatTo(event.getTimeStamp(), out);
+		out.append("\"}");
+	}
+
+	/**
+	 * @return the rendered actor of {@code tracker}, re-rendered whenever
+	 *         doStart() replaces the actor or object id.
+	 */
+	private ActorFragment getActorFragment(TrackerAsset tracker) {
+		Map<String, Object> actor = tracker == null ? null
+				: tracker.getActorObject();
+		String objectId = tracker == null ? null : tracker.getObjectId();
+		ActorFragment fragment = actorFragment;
+		if (fragment.actor != actor || fragment.sourceObjectId != objectId) {
+			fragment = new ActorFragment(actor, objectId);
+			actorFragment = fragment;
+		}
+		return fragment;
+	}
+
+	/**
+	 * Pre-rendered {@code {"actor":{...},} and escaped object id
+	 */
+	private final class ActorFragment {
+
+		private final Map<String, Object> actor;
+
+		private final String sourceObjectId;
+
+		private final String json;
+
+		private final String objectId;
+
+		ActorFragment(Map<String, Object> actor, String objectId) {
+			this.actor = actor;
+			this.sourceObjectId = objectId;
+			StringBuilder out = new StringBuilder("{");
+			try {
+				JsonAppender.name(out, getActorKey());
+				if (actor == null) {
+					out.append("{}");
+				} else {
+					JsonAppender.object(out, actor);
+				}
+				this.json = out.append(',').toString();
+				out.setLength(0);
+				JsonAppender.escape(out, objectId);
+				this.objectId = out.toString();
+			} catch (IOException e) {
+				// not thrown by StringBuilder
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private <T extends Appendable> T renderVerb(T out, String id)
+			throws IOException {
+		JsonAppender.name(out, getVerbKey());
+		out.append('{');
+		JsonAppender.name(out, "id");
+		JsonAppender.string(out, id);
+		out.append('}');
+		return out;
+	}
+
+	private StringBuilder renderTarget(StringBuilder out, String type)
+			throws IOException {
+		JsonAppender.name(out, getTargetKey());
+		out.append('{');
+		JsonAppender.name(out, "definition");
+		out.append('{');
+		JsonAppender.name(out, "type");
+		JsonAppender.string(out, type);
+		out.append("},");
+		JsonAppender.name(out, "id");
+		out.append('"');
+		return out;
+	}
+
+	private void writeResult(Appendable out, TraceResult result)
+			throws IOException {
+		Boolean success = result.getSuccess();
+		Boolean completion = result.getCompletion();
+		String response = result.getResponse();
+		Float score = result.getScore();
+		Map<String, Object> extensions = result.getExtensions();
+		boolean hasResponse = notNullEmptyOrNan(response);
+		if (success == null && completion == null && !hasResponse
+				&& score == null && extensions.isEmpty()) {
+			return;
+		}
+
+		out.append(',');
+		JsonAppender.name(out, getResultKey());
+		char separator = '{';
+		if (success != null) {
+			out.append(separator);
+			JsonAppender.name(out, "success");
+			out.append(success.toString());
+			separator = ',';
+		}
+		if (completion != null) {
+			out.append(separator);
+			JsonAppender.name(out, "completion");
+			out.append(completion.toString());
+			separator = ',';
+		}
+		if (hasResponse) {
+			out.append(separator);
+			JsonAppender.name(out, "response");
+			JsonAppender.string(out, response);
+			separator = ',';
+		}
+		if (score != null) {
+			out.append(separator);
+			JsonAppender.name(out, "score");
+			out.append('{');
+			JsonAppender.name(out, "raw");
+			JsonAppender.value(out, score);
+			out.append('}');
+			separator = ',';
+		}
+		if (!extensions.isEmpty()) {
+			out.append(separator);
+			JsonAppender.name(out, "extensions");
+			char extensionSeparator = '{';
+			for (Map.Entry<String, Object> extension : extensions
+					.entrySet()) {
+				if (extension.getValue() == null) {
+					continue;
+				}
+				String id = extension.getKey();
+				String xApiId = extensionIds.get(id);
+				out.append(extensionSeparator);
+				JsonAppender.name(out, xApiId != null ? xApiId : id);
+				JsonAppender.value(out, extension.getValue());
+				extensionSeparator = ',';
+			}
+			if (extensionSeparator == '{') {
+				out.append('{');
+			}
+			out.append('}');
+		}
+		out.append('}');
 	}
 
 	public Map<String, Object> toMap(TrackerEvent event, TrackerAsset tracker) {
@@ -82,12 +303,8 @@ class JsonTrackerEventMarshaller implements TrackerEventMarshaller {
 	}
 
 	protected void verbToJson(Map<String, Object> object, TraceVerb verb) {
-		String originalId = verb.getStringVerb();
-		String xApiVerbId = xApiVerbs.get(originalId);
-		String id = xApiVerbId != null ? xApiVerbId : originalId;
-
 		Map<String, Object> jsonVerb = new HashMap<>();
-		jsonVerb.put("id", id);
+		jsonVerb.put("id", getVerbId(verb));
 
 		object.put(getVerbKey(), jsonVerb);
 	}
@@ -96,19 +313,16 @@ class JsonTrackerEventMarshaller implements TrackerEventMarshaller {
 		return "verb";
 	}
 
+	private String getVerbId(TraceVerb verb) {
+		String originalId = verb.getStringVerb();
+		String xApiVerbId = xApiVerbs.get(originalId);
+		return xApiVerbId != null ? xApiVerbId : originalId;
+	}
+
 	protected void targetToJson(TrackerAsset tracker,
 			Map<String, Object> object, TraceObject target) {
-		String type = target.getType();
-		if (objectIds.containsKey(type)) {
-			type = objectIds.get(type);
-		} else {
-			String complaint = "Tracker-xAPI: Unknown definition for target type: "
-					+ type;
-			complain(complaint, complaint + " - ignored",
-					TargetXApiException.class, null);
-		}
 		Map<String, Object> definition = new HashMap<>();
-		definition.put("type", type);
+		definition.put("type", getTargetType(target));
 
 		Map<String, Object> jsonTarget = new HashMap<>();
 		jsonTarget.put("definition", definition);
@@ -124,6 +338,19 @@ class JsonTrackerEventMarshaller implements TrackerEventMarshaller {
 		return "target";
 	}
 
+	private String getTargetType(TraceObject target) {
+		String type = target.getType();
+		String xApiType = objectIds.get(type);
+		if (xApiType != null) {
+			return xApiType;
+		}
+		String complaint = "Tracker-xAPI: Unknown definition for target type: "
+				+ type;
+		complain(complaint, complaint + " - ignored",
+				TargetXApiException.class, null);
+		return type;
+	}
+
 	protected void resultToJson(Map<String, Object> object,
 			TraceResult result) {
 		Map<String, Object> jsonResult = new HashMap<>();
@@ -0,0 +1,304 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends batches to a local log file, writing only the new batch on each
+ * flush.
+ *
+ * Batches are UTF-8 encoded straight into a reusable buffer, which is
+ * written to the file when full and on {@link #flush()}, so appending
+ * neither copies the batch nor allocates. Line-based formats are plainly
+ * appended. JSON and xAPI logs are kept as a single array: each batch
+ * replaces the array's footer ({@code "\r\n]"}) with a separator, followed by
+ * its events and a new footer, so the file is never read back. A write torn
+ * by a crash leaves a partial last line, or the array unclosed: the log is
+ * repaired on the next open (see {@link #repair(FileChannel)} and
+ * {@link #repairLines(FileChannel)}), dropping the torn line or event.
+ *
+ * Not thread-safe: TrackerAsset only uses it while holding its flush lock.
+ */
+class LocalLogWriter implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final String LINE_SEPARATOR = TrackerEventMarshaller.LINE_SEPARATOR;
+
+	private static final byte[] FOOTER = (LINE_SEPARATOR + "]")
+			.getBytes(StandardCharsets.UTF_8);
+
+	private static final int SCAN_SIZE = 8192;
+
+	private final File file;
+
+	private final boolean array;
+
+	private final FileChannel channel;
+
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8
+			.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/** Bytes not yet written, which go right after {@link #written} */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/** Bytes in the file; the footer, if any, is at the end */
+	private long written;
+
+	/**
+	 * Opens (or creates) the log, repairing an existing log torn by a
+	 * crash.
+	 * 
+	 * @param array
+	 *            true if batches are JSON arrays, to be merged into one.
+	 */
+	LocalLogWriter(File file, boolean array) throws IOException {
+		this.file = file;
+		this.array = array;
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Cannot create log directory " + parent);
+		}
+		this.channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			if (array) {
+				repair(channel);
+			} else {
+				repairLines(channel);
+			}
+			this.written = channel.size();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return bytes appended so far, buffered ones included.
+	 */
+	long getSize() {
+		return written + buffer.position();
+	}
+
+	/**
+	 * Appends a batch, as encoded by {@link BatchEncoder}. It reaches the
+	 * file once the buffer fills up, or on {@link #flush()}.
+	 */
+	void append(CharSequence batch) throws IOException {
+		int start = 0;
+		if (array && written + buffer.position() > 0) {
+			// continue the array: its footer is dropped and the batch's
+			// opening "[" becomes a separator
+			if (buffer.position() >= FOOTER.length) {
+				buffer.position(buffer.position() - FOOTER.length);
+			} else {
+				flush();
+				written -= FOOTER.length;
+			}
+			buffer.put((byte) ',');
+			start = 1;
+		}
+		CharBuffer chars = CharBuffer.wrap(batch, start, batch.length());
+		encoder.reset();
+		while (encoder.encode(chars, buffer, true).isOverflow()) {
+			flush();
+		}
+		while (encoder.flush(buffer).isOverflow()) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the buffered bytes to the file.
+	 */
+	void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, written);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Writes the buffered bytes and forces the file to the storage device.
+	 */
+	void sync() throws IOException {
+		flush();
+		channel.force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Closes a JSON array log torn by a crash: it is cut after its last
+	 * complete event, and the footer written again. Events are single lines,
+	 * and a line separator is only written after a complete line; the line
+	 * after the last separator may still hold a complete event (followed by
+	 * the start of the next batch, or by the rest of an overwritten footer).
+	 * 
+	 * @return true if the log had to be repaired.
+	 */
+	static boolean repair(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size == 0 || endsWithFooter(channel, size)) {
+			return false;
+		}
+		long separator = lastLineSeparator(channel, size);
+		long end;
+		if (separator < 0) {
+			// torn header: start again
+			end = 0;
+		} else {
+			long line = separator + LINE_SEPARATOR.length();
+			ByteBuffer tail = read(channel, line, (int) (size - line));
+			int object = objectLength(tail);
+			if (object > 0) {
+				end = line + object;
+			} else {
+				end = separator;
+				if (end > 0 && read(channel, end - 1, 1).get(0) == ',') {
+					end--;
+				}
+			}
+		}
+		channel.truncate(end);
+		if (end > 0) {
+			ByteBuffer footer = ByteBuffer.wrap(FOOTER);
+			while (footer.hasRemaining()) {
+				channel.write(footer, end + footer.position());
+			}
+		}
+		channel.force(false);
+		return true;
+	}
+
+	/**
+	 * Cuts a line-based log torn by a crash after its last line separator.
+	 * 
+	 * @return true if the log had to be repaired.
+	 */
+	static boolean repairLines(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long separator = lastLineSeparator(channel, size);
+		long end = separator < 0 ? 0 : separator + LINE_SEPARATOR.length();
+		if (end == size) {
+			return false;
+		}
+		channel.truncate(end);
+		channel.force(false);
+		return true;
+	}
+
+	/**
+	 * @return the position of the last {@code "\r\n"}, or -1 if there is
+	 *         none.
+	 */
+	private static long lastLineSeparator(FileChannel channel, long size)
+			throws IOException {
+		long end = size;
+		while (end > 1) {
+			long start = Math.max(0, end - SCAN_SIZE);
+			ByteBuffer chunk = read(channel, start, (int) (end - start));
+			for (int i = chunk.limit() - 1; i > 0; i--) {
+				if (chunk.get(i) == '\n' && chunk.get(i - 1) == '\r') {
+					return start + i - 1;
+				}
+			}
+			// a separator may straddle two chunks
+			end = start + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the length of the JSON object at the start of {@code line},
+	 *         or -1 if it is not complete.
+	 */
+	private static int objectLength(ByteBuffer line) {
+		if (!line.hasRemaining() || line.get(0) != '{') {
+			return -1;
+		}
+		int depth = 0;
+		boolean string = false;
+		for (int i = 0; i < line.limit(); i++) {
+			byte b = line.get(i);
+			if (string) {
+				if (b == '\\') {
+					i++;
+				} else if (b == '"') {
+					string = false;
+				}
+			} else if (b == '"') {
+				string = true;
+			} else if (b == '{' || b == '[') {
+				depth++;
+			} else if ((b == '}' || b == ']') && --depth == 0) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position,
+			int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static boolean endsWithFooter(FileChannel channel, long size)
+			throws IOException {
+		if (size < FOOTER.length) {
+			return false;
+		}
+		ByteBuffer tail = read(channel, size - FOOTER.length, FOOTER.length);
+		for (int i = 0; i < FOOTER.length; i++) {
+			if (tail.get(i) != FOOTER[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * Compresses sealed log segments (see {@link SegmentedLog}) into
+ * {@link CompressedBlocks} files on a low-priority background thread.
+ *
+ * The segments to compress are found through the manifests in the log
+ * directory: {@code 1234.000000.log} is replaced by
+ * {@code 1234.000000.log.z}, which only appears once complete; the raw
+ * segment is deleted afterwards. Sealed segments never change, so the
+ * tracker keeps writing (and flushing) while they are compressed.
+ */
+class SegmentCompactor implements Runnable {
+
+	private static final Gson gson = new Gson();
+
+	private final File directory;
+
+	private final Consumer<IOException> errors;
+
+	private final AtomicBoolean requested = new AtomicBoolean();
+
+	private volatile boolean running;
+
+	private Thread thread;
+
+	/**
+	 * @param errors
+	 *            told of the segments that could not be compressed; they are
+	 *            tried again on the next pass.
+	 */
+	SegmentCompactor(File directory, Consumer<IOException> errors) {
+		this.directory = directory;
+		this.errors = errors;
+	}
+
+	/**
+	 * Starts the compaction thread, which makes a first pass right away.
+	 */
+	synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		requested.set(true);
+		thread = new Thread(this, "tracker-compactor");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Asks for a pass, e.g. because a segment was sealed. Never blocks.
+	 */
+	void request() {
+		Thread t = thread;
+		if (t != null && requested.compareAndSet(false, true)) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Stops the compaction thread, abandoning the segment being compressed.
+	 */
+	synchronized void stop() {
+		Thread t = thread;
+		if (t == null) {
+			return;
+		}
+		running = false;
+		t.interrupt();
+		boolean interrupted = false;
+		while (t.isAlive()) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			if (!requested.getAndSet(false)) {
+				LockSupport.park(this);
+				continue;
+			}
+			compact();
+		}
+	}
+
+	/**
+	 * Compresses the sealed segments listed in the manifests that are not
+	 * compressed yet.
+	 * 
+	 * @return the number of segments compressed.
+	 */
+	int compact() {
+		File[] manifests = directory.listFiles((dir, name) -> name
+				.endsWith(SegmentedLog.MANIFEST_EXTENSION));
+		int compacted = 0;
+		if (manifests == null) {
+			return compacted;
+		}
+		for (File manifest : manifests) {
+			try {
+				for (String line : Files.readAllLines(manifest.toPath(),
+						StandardCharsets.UTF_8)) {
+					if (!running) {
+						return compacted;
+					}
+					File segment = segment(line);
+					if (segment != null && segment.isFile()) {
+						compress(segment);
+						compacted++;
+					}
+				}
+			} catch (InterruptedIOException e) {
+				return compacted;
+			} catch (IOException e) {
+				errors.accept(e);
+			}
+		}
+		return compacted;
+	}
+
+	/**
+	 * @return the segment listed in a manifest line, or null if the line
+	 *         cannot be read (e.g. it is still being written).
+	 */
+	private File segment(String line) {
+		try {
+			Map<?, ?> entry = gson.fromJson(line, Map.class);
+			Object name = entry == null ? null : entry.get("segment");
+			return name == null ? null : new File(directory, name.toString());
+		} catch (JsonSyntaxException e) {
+			return null;
+		}
+	}
+
+	private void compress(File segment) throws IOException {
+		File target = new File(directory,
+				segment.getName() + CompressedBlocks.EXTENSION);
+		if (!target.isFile()) {
+			CompressedBlocks.compress(segment, target);
+		}
+		if (!segment.delete()) {
+			throw new IOException("Cannot delete compacted segment " + segment);
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+
+import es.eucm.tracker.TrackerSettings.TraceFormats;
+
+/**
+ * Local log split into segments that roll over by size and/or age.
+ *
+ * A log named {@code 1234.log} is written to {@code 1234.000000.log},
+ * {@code 1234.000001.log}... Once a segment is full it is sealed: closed,
+ * made read-only and only then listed in {@code 1234.manifest}, one JSON
+ * object per line with its name, the times its first and last batches were
+ * written, its number of events and its size. Sealed segments never change,
+ * so they can be read, shipped, compressed or deleted without contending
+ * with the writer, which only ever touches the active segment (the one not
+ * in the manifest). A segment left unsealed by a crash is sealed when the
+ * log is opened again.
+ *
+ * Sealed segments may then be replaced by their compressed form
+ * ({@code 1234.000000.log.z}, see {@link SegmentCompactor}).
+ *
+ * Each file is indexed as it is written (see {@link TraceIndex}).
+ *
+ * Segments roll over before a batch is appended, so a segment may exceed
+ * the maximum size by one batch. Without limits the log is a single file
+ * with the given name, and no manifest.
+ *
+ * Not thread-safe: TrackerAsset only uses it while holding its flush lock.
+ */
+class SegmentedLog implements Closeable {
+
+	static final String MANIFEST_EXTENSION = ".manifest";
+
+	private static final Gson gson = new Gson();
+
+	private final File directory;
+
+	private final String name;
+
+	private final TraceFormats format;
+
+	private final long maxSize;
+
+	private final long maxAge;
+
+	/** Name without its extension, which segment names start with */
+	private final String prefix;
+
+	private final String extension;
+
+	private final Pattern segmentName;
+
+	private LocalLogWriter writer;
+
+	/** Index of the file being written */
+	private TraceIndex.Writer index;
+
+	/** Told when a segment is sealed, if any */
+	private Runnable sealListener;
+
+	/** Sequence number of the next segment to open */
+	private int sequence;
+
+	/** Time (ms) of the first batch in the active segment */
+	private long from;
+
+	/** Time (ms) of the last batch in the active segment */
+	private long to;
+
+	/** Events in the active segment */
+	private int events;
+
+	/**
+	 * @param maxSize
+	 *            bytes after which a segment is sealed; 0 for no limit.
+	 * @param maxAge
+	 *            ms after its first batch a segment is sealed; 0 for no
+	 *            limit.
+	 */
+	SegmentedLog(File directory, String name, TraceFormats format,
+			long maxSize, long maxAge) throws IOException {
+		this.directory = directory;
+		this.name = name;
+		this.format = format;
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+		int dot = name.lastIndexOf('.');
+		this.prefix = dot > 0 ? name.substring(0, dot) : name;
+		this.extension = dot > 0 ? name.substring(dot) : "";
+		this.segmentName = Pattern.compile(Pattern.quote(prefix)
+				+ "\\.(\\d{6,})" + Pattern.quote(extension) + "("
+				+ Pattern.quote(CompressedBlocks.EXTENSION) + ")?");
+		if (isSegmented()) {
+			recover();
+		} else {
+			open(new File(directory, name));
+		}
+	}
+
+	String getName() {
+		return name;
+	}
+
+	TraceFormats getFormat() {
+		return format;
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the file being written.
+	 */
+	File getFile() {
+		return writer != null ? writer.getFile() : segmentFile(sequence);
+	}
+
+	File getManifest() {
+		return new File(directory, prefix + MANIFEST_EXTENSION);
+	}
+
+	void setSealListener(Runnable sealListener) {
+		this.sealListener = sealListener;
+	}
+
+	boolean isSegmented() {
+		return maxSize > 0 || maxAge > 0;
+	}
+
+	/**
+	 * Appends a batch, sealing the active segment first if it is full.
+	 * 
+	 * @param count
+	 *            events in the batch.
+	 * @param traces
+	 *            the events in the batch, to index them; null if they are
+	 *            not known.
+	 */
+	void append(CharSequence batch, int count, List<TrackerEvent> traces)
+			throws IOException {
+		long now = System.currentTimeMillis();
+		if (writer != null && isSegmented() && events > 0
+				&& ((maxSize > 0 && writer.getSize() >= maxSize)
+						|| (maxAge > 0 && now - from >= maxAge))) {
+			seal();
+		}
+		if (writer == null) {
+			open(segmentFile(sequence++));
+			from = now;
+		}
+		long offset = writer.getSize();
+		writer.append(batch);
+		index.add(offset, writer.getSize(), traces);
+		to = now;
+		events += count;
+	}
+
+	void flush() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	void sync() throws IOException {
+		if (writer != null) {
+			writer.sync();
+		}
+	}
+
+	/**
+	 * Closes the log, sealing the active segment.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (writer == null) {
+			return;
+		}
+		if (isSegmented() && events > 0) {
+			seal();
+		} else {
+			closeWriter();
+		}
+	}
+
+	private void open(File file) throws IOException {
+		writer = new LocalLogWriter(file, BatchEncoder.isArray(format));
+		try {
+			index = new TraceIndex.Writer(file);
+		} catch (IOException e) {
+			writer.close();
+			writer = null;
+			throw e;
+		}
+	}
+
+	private void closeWriter() throws IOException {
+		try {
+			writer.close();
+		} finally {
+			writer = null;
+			index.close();
+			index = null;
+		}
+	}
+
+	private File segmentFile(int sequence) {
+		return new File(directory,
+				String.format("%s.%06d%s", prefix, sequence, extension));
+	}
+
+	/**
+	 * Closes the active segment, lists it in the manifest and makes it
+	 * read-only. A segment left out of the manifest (e.g. by a crash) is
+	 * sealed again on the next open.
+	 */
+	private void seal() throws IOException {
+		File file = writer.getFile();
+		writer.sync();
+		closeWriter();
+		record(file, from, to, events);
+		file.setReadOnly();
+		events = 0;
+		if (sealListener != null) {
+			sealListener.run();
+		}
+	}
+
+	private void record(File segment, long from, long to, int events)
+			throws IOException {
+		Map<String, Object> entry = new LinkedHashMap<>();
+		entry.put("segment", segment.getName());
+		entry.put("from", Instant.ofEpochMilli(from).toString());
+		entry.put("to", Instant.ofEpochMilli(to).toString());
+		entry.put("events", events);
+		entry.put("bytes", segment.length());
+		StringBuilder line = new StringBuilder(160);
+		JsonAppender.object(line, entry);
+		line.append(TrackerEventMarshaller.LINE_SEPARATOR);
+		Files.write(getManifest().toPath(),
+				line.toString().getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Finds the next sequence number, and seals the segments that were
+	 * being written when the log was last closed.
+	 */
+	private void recover() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create log directory " + directory);
+		}
+		Set<String> sealed = new HashSet<>();
+		File manifest = getManifest();
+		if (manifest.isFile()) {
+			for (String line : Files.readAllLines(manifest.toPath(),
+					StandardCharsets.UTF_8)) {
+				if (!line.isEmpty()) {
+					sealed.add(String.valueOf(
+							gson.fromJson(line, Map.class).get("segment")));
+				}
+			}
+		}
+		String[] names = directory.list();
+		if (names == null) {
+			throw new IOException("Cannot list log directory " + directory);
+		}
+		Arrays.sort(names);
+		for (String file : names) {
+			Matcher matcher = segmentName.matcher(file);
+			if (!matcher.matches()) {
+				continue;
+			}
+			sequence = Math.max(sequence,
+					Integer.parseInt(matcher.group(1)) + 1);
+			// compressed segments were sealed before being compressed
+			if (matcher.group(2) == null && !sealed.contains(file)) {
+				File segment = new File(directory, file);
+				BasicFileAttributes attributes = Files.readAttributes(
+						segment.toPath(), BasicFileAttributes.class);
+				// read-only if its manifest entry was lost: it is rewritten
+				segment.setWritable(true);
+				// a crash may have left a partial line, or the array unclosed
+				try (FileChannel channel = FileChannel.open(segment.toPath(),
+						StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+					if (BatchEncoder.isArray(format)) {
+						LocalLogWriter.repair(channel);
+					} else {
+						LocalLogWriter.repairLines(channel);
+					}
+				}
+				int count = countEvents(segment);
+				if (count == 0) {
+					segment.delete();
+					continue;
+				}
+				record(segment, attributes.creationTime().toMillis(),
+						attributes.lastModifiedTime().toMillis(), count);
+				segment.setReadOnly();
+			}
+		}
+	}
+
+	/**
+	 * Counts the events in an unsealed (and repaired) segment, reading it
+	 * once.
+	 */
+	private int countEvents(File segment) throws IOException {
+		boolean array = BatchEncoder.isArray(format);
+		int lines = 0;
+		int count = 0;
+		BinaryTrackerEventUnmarshaller binary = format == TraceFormats.BINARY
+				? new BinaryTrackerEventUnmarshaller()
+				: null;
+		try (BufferedReader reader = Files.newBufferedReader(segment.toPath(),
+				StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// arrays have a line for "[" and another for "]"
+				if (line.isEmpty() || array && !line.startsWith("{")) {
+					continue;
+				}
+				lines++;
+				if (binary != null) {
+					try {
+						count += binary.unmarshalBatch(line).size();
+					} catch (RuntimeException e) {
+						// corrupt batch: decoding may fail in any way
+					}
+				}
+			}
+		}
+		return binary != null ? count : lines;
+	}
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * FIFO of trace batches kept on disk, in append-only memory-mapped segment
+ * files.
+ *
+ * Each batch is a record: {@code [length][crc][traces][state][payload]},
+ * where the payload is the UTF-8 marshalled batch and the state is flipped in
+ * place once the batch has been sent. Segments whose batches have all been
+ * sent are deleted. Writes go straight to the mapped pages, so spilled
+ * batches survive the process being killed, and are recovered (up to the
+ * first torn record) when the queue is opened again. As fully sent segments
+ * are deleted, recovery time depends on the batches not yet sent rather than
+ * on all those ever written.
+ *
+ * Used both to spill pending batches and as the write-ahead log of the
+ * batches being sent.
+ *
+ * Not thread-safe: TrackerAsset only uses it while holding its flush lock.
+ */
+class SpillQueue implements Closeable {
+
+	/** Default size of a segment file; larger batches get their own */
+	static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+	private static final String PREFIX = "traces-";
+
+	private static final String SUFFIX = ".spill";
+
+	private static final int HEADER = 16;
+
+	private static final int PENDING = 0;
+
+	private static final int SENT = 1;
+
+	private final File directory;
+
+	private final int segmentSize;
+
+	/** Oldest segment first; appends go to the last one */
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+	private final CRC32 crc = new CRC32();
+
+	private long nextId;
+
+	private int count;
+
+	private int traces;
+
+	/**
+	 * Opens the queue, recovering the batches left in {@code directory}.
+	 */
+	SpillQueue(File directory, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create spill directory " + directory);
+		}
+		File[] files = directory.listFiles(
+				(dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+		if (files == null) {
+			throw new IOException("Cannot list spill directory " + directory);
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			long id;
+			try {
+				id = Long.parseLong(file.getName().substring(PREFIX.length(),
+						file.getName().length() - SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			nextId = Math.max(nextId, id + 1);
+			Segment segment = new Segment(file, (int) file.length());
+			segment.recover();
+			if (segment.live == 0) {
+				segment.delete();
+			} else {
+				segments.addLast(segment);
+				count += segment.live;
+				traces += segment.liveTraces;
+			}
+		}
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * @return number of batches not yet sent.
+	 */
+	int getBatchCount() {
+		return count;
+	}
+
+	/**
+	 * @return number of traces in the batches not yet sent.
+	 */
+	int getTraceCount() {
+		return traces;
+	}
+
+	/**
+	 * Appends a batch at the end of the queue.
+	 */
+	void append(TraceBatch batch) throws IOException {
+		byte[] payload = batch.getData().getBytes(StandardCharsets.UTF_8);
+		int length = HEADER + payload.length;
+		Segment segment = segments.peekLast();
+		if (segment == null || segment.writePos + length > segment.capacity) {
+			segment = new Segment(
+					new File(directory,
+							String.format("%s%016d%s", PREFIX, nextId++, SUFFIX)),
+					Math.max(segmentSize, length));
+			segments.addLast(segment);
+		}
+		crc.reset();
+		crc.update(payload, 0, payload.length);
+		int pos = segment.writePos;
+		MappedByteBuffer buffer = segment.buffer;
+		ByteBuffer body = buffer.duplicate();
+		body.position(pos + HEADER);
+		body.put(payload);
+		buffer.putInt(pos + 4, (int) crc.getValue());
+		buffer.putInt(pos + 8, batch.getSize());
+		buffer.putInt(pos + 12, PENDING);
+		// a non-zero length publishes the record
+		buffer.putInt(pos, payload.length);
+		segment.lastPos = pos;
+		segment.writePos += length;
+		segment.live++;
+		count++;
+		traces += batch.getSize();
+	}
+
+	/**
+	 * Takes back the batch just appended, as if it had never been. Only the
+	 * last {@link #append(TraceBatch)} can be undone, and only while it has
+	 * not been removed.
+	 */
+	void undoAppend() {
+		Segment segment = segments.peekLast();
+		if (segment == null || segment.lastPos < 0) {
+			return;
+		}
+		int pos = segment.lastPos;
+		traces -= segment.buffer.getInt(pos + 8);
+		// a zero length ends the records, as in a new segment
+		segment.buffer.putInt(pos, 0);
+		segment.writePos = pos;
+		segment.lastPos = -1;
+		segment.live--;
+		count--;
+	}
+
+	/**
+	 * @return the oldest batch not yet sent, or null if there is none.
+	 */
+	TraceBatch peek() throws IOException {
+		Segment segment = head();
+		if (segment == null) {
+			return null;
+		}
+		return read(segment, segment.readPos);
+	}
+
+	/**
+	 * Visits the batches not yet sent, oldest first, without removing them.
+	 */
+	void forEach(Consumer<TraceBatch> consumer) throws IOException {
+		head();
+		for (Segment segment : segments) {
+			int pos = segment.readPos;
+			while (pos < segment.writePos) {
+				consumer.accept(read(segment, pos));
+				pos += HEADER + segment.buffer.getInt(pos);
+			}
+		}
+	}
+
+	/**
+	 * Marks the batch returned by {@link #peek()} as sent.
+	 */
+	void remove() throws IOException {
+		Segment segment = head();
+		if (segment == null) {
+			return;
+		}
+		int pos = segment.readPos;
+		if (pos == segment.lastPos) {
+			segment.lastPos = -1;
+		}
+		segment.buffer.putInt(pos + 12, SENT);
+		segment.readPos += HEADER + segment.buffer.getInt(pos);
+		segment.live--;
+		count--;
+		traces -= segment.buffer.getInt(pos + 8);
+		if (segment.live == 0 && segments.size() > 1) {
+			segments.removeFirst();
+			segment.delete();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException error = null;
+		for (Segment segment : segments) {
+			try {
+				segment.channel.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		segments.clear();
+		count = 0;
+		traces = 0;
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private TraceBatch read(Segment segment, int pos) {
+		MappedByteBuffer buffer = segment.buffer;
+		byte[] payload = new byte[buffer.getInt(pos)];
+		ByteBuffer body = buffer.duplicate();
+		body.position(pos + HEADER);
+		body.get(payload);
+		return new TraceBatch(new String(payload, StandardCharsets.UTF_8),
+				buffer.getInt(pos + 8));
+	}
+
+	/**
+	 * @return the oldest segment with batches not yet sent.
+	 */
+	private Segment head() throws IOException {
+		// the tail segment is kept for appends even once fully sent
+		while (count > 0 && segments.peekFirst().live == 0) {
+			segments.removeFirst().delete();
+		}
+		return count == 0 ? null : segments.peekFirst();
+	}
+
+	private class Segment {
+
+		private final File file;
+
+		private final FileChannel channel;
+
+		private final MappedByteBuffer buffer;
+
+		private final int capacity;
+
+		private int readPos;
+
+		private int writePos;
+
+		/** Last record appended since opened, or -1 */
+		private int lastPos = -1;
+
+		/** Batches not yet sent */
+		private int live;
+
+		/** Traces in the batches not yet sent, as recovered */
+		private int liveTraces;
+
+		Segment(File file, int capacity) throws IOException {
+			this.file = file;
+			this.capacity = capacity;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					capacity);
+		}
+
+		/**
+		 * Scans the records; a torn or corrupt record (e.g. the process was
+		 * killed while writing it) ends the segment.
+		 */
+		void recover() {
+			int pos = 0;
+			readPos = -1;
+			while (pos + HEADER <= capacity) {
+				int length = buffer.getInt(pos);
+				if (length <= 0 || length > capacity - pos - HEADER) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				ByteBuffer body = buffer.duplicate();
+				body.position(pos + HEADER);
+				body.get(payload);
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+					break;
+				}
+				if (buffer.getInt(pos + 12) == PENDING) {
+					if (readPos < 0) {
+						readPos = pos;
+					}
+					live++;
+					liveTraces += buffer.getInt(pos + 8);
+				}
+				pos += HEADER + length;
+			}
+			writePos = pos;
+			if (readPos < 0) {
+				readPos = pos;
+			}
+		}
+
+		void delete() throws IOException {
+			channel.close();
+			// may fail while the pages are still mapped (e.g. on Windows);
+			// fully sent segments are deleted again when recovering
+			file.delete();
+		}
+	}
+}
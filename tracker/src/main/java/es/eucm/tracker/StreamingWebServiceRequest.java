@@ -0,0 +1,50 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import eu.rageproject.asset.manager.RequestResponse;
+import eu.rageproject.asset.manager.RequestSettings;
+
+/**
+ * Web service requests whose body is written as bytes, rather than passed as
+ * a string in {@link RequestSettings#body}. Needed to send compressed
+ * batches; implemented by {@link HttpWebServiceRequest}.
+ */
+public interface StreamingWebServiceRequest {
+
+	/**
+	 * Writes a request body.
+	 */
+	interface BodyWriter {
+
+		/**
+		 * Writes the whole body; {@code out} may be closed afterwards.
+		 */
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * @param requestSettings
+	 *            the request; its body is ignored.
+	 * @param body
+	 *            writes the body of the request.
+	 */
+	RequestResponse WebServiceRequest(RequestSettings requestSettings,
+			BodyWriter body);
+}
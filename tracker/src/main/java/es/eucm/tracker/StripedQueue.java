@@ -0,0 +1,195 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.lang.ref.WeakReference;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Queue with one buffer (stripe) per producer thread, so that enqueuing never
+ * contends with other producers.
+ *
+ * Each stripe is FIFO ordered; {@link #drainTo(Consumer, int)} merges them,
+ * handing out the smallest of the stripe heads according to the comparator;
+ * on ties, the head of the oldest stripe goes first. Thus the global ordering
+ * is established at flush time, and only among the elements queued by then.
+ * Stripes are expected to be few (one per producer thread), so heads are
+ * merged with a linear scan.
+ *
+ * Stripes of finished threads are dropped once empty.
+ */
+class StripedQueue<T> implements TraceQueue<T> {
+
+	/** Preallocated slots per stripe */
+	static final int STRIPE_CAPACITY = 256;
+
+	private final Comparator<? super T> comparator;
+
+	private final List<Stripe<T>> stripes = new CopyOnWriteArrayList<>();
+
+	private final ThreadLocal<Stripe<T>> local = new ThreadLocal<>();
+
+	/**
+	 * @param comparator
+	 *            order in which the heads of the stripes are merged (e.g. by
+	 *            timestamp only: equal heads are merged in stripe order).
+	 */
+	StripedQueue(Comparator<? super T> comparator) {
+		this.comparator = comparator;
+	}
+
+	@Override
+	public int getCount() {
+		long count = 0;
+		for (Stripe<T> stripe : stripes) {
+			count += stripe.queue.getCount();
+		}
+		return (int) Math.min(Integer.MAX_VALUE, count);
+	}
+
+	@Override
+	public void enqueue(T obj) {
+		Stripe<T> stripe = local.get();
+		if (stripe == null) {
+			stripe = new Stripe<>(Thread.currentThread());
+			stripes.add(stripe);
+			local.set(stripe);
+		}
+		stripe.queue.enqueue(obj);
+	}
+
+	@Override
+	public int drainTo(Consumer<? super T> consumer, int max) {
+		int n = 0;
+		while (n < max) {
+			Stripe<T> min = null;
+			for (Stripe<T> stripe : stripes) {
+				if (stripe.fillHead() && (min == null
+						|| comparator.compare(stripe.head, min.head) < 0)) {
+					min = stripe;
+				}
+			}
+			if (min == null) {
+				break;
+			}
+			consumer.accept(min.takeHead());
+			n++;
+		}
+		return n;
+	}
+
+	@Override
+	public void commit() {
+		boolean abandoned = false;
+		for (Stripe<T> stripe : stripes) {
+			// heads fetched but not handed out stay in the queue
+			int emitted = stripe.emitted;
+			stripe.reset();
+			stripe.queue.dequeue(emitted);
+			abandoned |= stripe.isAbandoned();
+		}
+		if (abandoned) {
+			stripes.removeIf(Stripe::isAbandoned);
+		}
+	}
+
+	@Override
+	public void rollback() {
+		for (Stripe<T> stripe : stripes) {
+			stripe.reset();
+		}
+	}
+
+	@Override
+	public T dequeue() {
+		Stripe<T> min = null;
+		for (Stripe<T> stripe : stripes) {
+			stripe.reset();
+			if (stripe.fillHead() && (min == null
+					|| comparator.compare(stripe.head, min.head) < 0)) {
+				min = stripe;
+			}
+		}
+		rollback();
+		if (min == null) {
+			throw new NoSuchElementException();
+		}
+		return min.queue.dequeue();
+	}
+
+	@Override
+	public void clear() {
+		for (Stripe<T> stripe : stripes) {
+			stripe.reset();
+			stripe.queue.clear();
+		}
+	}
+
+	private static class Stripe<T> implements Consumer<T> {
+
+		private final ConcurrentQueue<T> queue = new ConcurrentQueue<>(
+				STRIPE_CAPACITY);
+
+		private final WeakReference<Thread> owner;
+
+		/** Next element to merge, reserved in the queue but not handed out */
+		private T head;
+
+		private boolean hasHead;
+
+		/** Elements handed out since the last commit or rollback */
+		private int emitted;
+
+		Stripe(Thread owner) {
+			this.owner = new WeakReference<>(owner);
+		}
+
+		boolean fillHead() {
+			return hasHead || queue.drainTo(this, 1) == 1;
+		}
+
+		@Override
+		public void accept(T obj) {
+			head = obj;
+			hasHead = true;
+		}
+
+		T takeHead() {
+			T obj = head;
+			head = null;
+			hasHead = false;
+			emitted++;
+			return obj;
+		}
+
+		void reset() {
+			queue.rollback();
+			head = null;
+			hasHead = false;
+			emitted = 0;
+		}
+
+		boolean isAbandoned() {
+			Thread thread = owner.get();
+			return (thread == null || !thread.isAlive())
+					&& queue.getCount() == 0;
+		}
+	}
+}
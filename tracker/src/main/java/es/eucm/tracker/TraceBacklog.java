@@ -0,0 +1,228 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts for the traces kept in memory (queued, pending or unsent) against
+ * the limits set in {@link TrackerSettings}, and counts the dropped ones.
+ *
+ * If no limit is set, nothing is accounted for (so producers do not contend
+ * on the counters) and every trace is admitted.
+ */
+class TraceBacklog {
+
+	/** Rough per-trace overhead: event, verb, target and result objects */
+	private static final long TRACE_OVERHEAD = 160;
+
+	/** Rough per-extension overhead: map entry and boxed value */
+	private static final long EXTENSION_OVERHEAD = 64;
+
+	private final AtomicInteger events = new AtomicInteger();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile int maxEvents;
+
+	private volatile long maxBytes;
+
+	private final Object roomLock = new Object();
+
+	private volatile int waiters;
+
+	/**
+	 * @param maxEvents
+	 *            max traces; 0 for no limit.
+	 * @param maxBytes
+	 *            max estimated bytes; 0 for no limit.
+	 */
+	void setLimits(int maxEvents, long maxBytes) {
+		this.maxEvents = Math.max(0, maxEvents);
+		this.maxBytes = Math.max(0, maxBytes);
+	}
+
+	boolean isBounded() {
+		return maxEvents > 0 || maxBytes > 0;
+	}
+
+	/**
+	 * Accounts for new traces if they fit within the limits.
+	 *
+	 * @return false if they do not fit (nothing is accounted for).
+	 */
+	boolean tryAdd(int n, long size) {
+		if (!isBounded()) {
+			return true;
+		}
+		int max = maxEvents;
+		if (max > 0) {
+			int current;
+			do {
+				current = events.get();
+				if (current + n > max) {
+					return false;
+				}
+			} while (!events.compareAndSet(current, current + n));
+		} else {
+			events.addAndGet(n);
+		}
+		long maxSize = maxBytes;
+		if (maxSize > 0) {
+			long current;
+			do {
+				current = bytes.get();
+				// a single trace larger than the limit is let through, on
+				// its own
+				if (current > 0 && current + size > maxSize) {
+					events.addAndGet(-n);
+					return false;
+				}
+			} while (!bytes.compareAndSet(current, current + size));
+		} else {
+			bytes.addAndGet(size);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until new traces fit within the limits, and accounts for them.
+	 *
+	 * @return false if they did not fit within {@code timeoutMillis}.
+	 */
+	boolean awaitAdd(int n, long size, long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (roomLock) {
+			waiters++;
+			try {
+				while (!tryAdd(n, size)) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						return false;
+					}
+					roomLock.wait(remaining);
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				waiters--;
+			}
+		}
+	}
+
+	/**
+	 * Accounts for traces regardless of the limits.
+	 */
+	void add(int n, long size) {
+		if (isBounded()) {
+			events.addAndGet(n);
+			bytes.addAndGet(size);
+		}
+	}
+
+	/**
+	 * Releases traces that are no longer kept in memory.
+	 */
+	void remove(int n, long size) {
+		if (!isBounded()) {
+			return;
+		}
+		events.addAndGet(-n);
+		bytes.addAndGet(-size);
+		if (waiters > 0) {
+			synchronized (roomLock) {
+				roomLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the accounted traces exceed the limits (marshalled
+	 *         batches may be larger than estimated).
+	 */
+	boolean isOverLimit() {
+		return (maxEvents > 0 && events.get() > maxEvents)
+				|| (maxBytes > 0 && bytes.get() > maxBytes);
+	}
+
+	void dropped(int n) {
+		dropped.addAndGet(n);
+	}
+
+	long getDropped() {
+		return dropped.get();
+	}
+
+	int getEvents() {
+		return events.get();
+	}
+
+	long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Forgets the accounted traces; the drop count is kept.
+	 */
+	void reset() {
+		events.set(0);
+		bytes.set(0);
+	}
+
+	/**
+	 * @return estimated heap used by a trace, in bytes.
+	 */
+	static long estimateSize(TrackerEvent trace) {
+		long size = TRACE_OVERHEAD;
+		if (trace.getTarget() != null) {
+			size += 2L * length(trace.getTarget().getID());
+			size += 2L * length(trace.getTarget().getType());
+		}
+		TrackerEvent.TraceResult result = trace.getResult();
+		if (result != null) {
+			size += 2L * length(result.getResponse());
+			Map<String, Object> extensions = result.getExtensions();
+			if (extensions != null) {
+				for (Map.Entry<String, Object> e : extensions.entrySet()) {
+					size += EXTENSION_OVERHEAD + 2L * length(e.getKey());
+					if (e.getValue() instanceof String) {
+						size += 2L * ((String) e.getValue()).length();
+					}
+				}
+			}
+		}
+		return size;
+	}
+
+	static long estimateSize(List<TrackerEvent> traces) {
+		long size = 0;
+		for (TrackerEvent trace : traces) {
+			size += estimateSize(trace);
+		}
+		return size;
+	}
+
+	private static int length(String s) {
+		return s == null ? 0 : s.length();
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+/**
+ * A marshalled batch of traces waiting to be sent.
+ */
+class TraceBatch {
+
+	private final String data;
+
+	private final int size;
+
+	/**
+	 * @param data
+	 *            marshalled traces, ready to be sent.
+	 * @param size
+	 *            number of traces in the batch.
+	 */
+	TraceBatch(String data, int size) {
+		this.data = data;
+		this.size = size;
+	}
+
+	public String getData() {
+		return data;
+	}
+
+	/**
+	 * @return number of traces in the batch.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return heap used by the marshalled traces, in bytes.
+	 */
+	public long getBytes() {
+		return 2L * data.length();
+	}
+}
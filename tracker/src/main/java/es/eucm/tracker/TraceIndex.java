@@ -0,0 +1,251 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sparse index of a local log, kept alongside it in {@code <log>.idx}.
+ *
+ * Each entry covers a block of consecutive batches (of at least
+ * {@link #BLOCK_SIZE} bytes, but for the last one): {@code [offset][end]}
+ * in the log, the {@code [first][last]} event timestamps (ms) and two
+ * bitmaps of the verbs and activity types in the block, with bit
+ * {@link BinaryTraceEncoder#verbCode(TraceVerb)} /
+ * {@link BinaryTraceEncoder#typeCode(String)} set (bit 0 for any other verb
+ * or type). Batches whose events are not known (e.g. resent pending ones)
+ * make the block match any query. Parts of the log without an entry (e.g.
+ * written just before a crash) are not indexed, and must be scanned.
+ */
+final class TraceIndex {
+
+	static final String EXTENSION = ".idx";
+
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	private static final int ENTRY = 6 * 8;
+
+	private TraceIndex() {
+	}
+
+	/**
+	 * A block of the log.
+	 */
+	static class Entry {
+
+		final long offset;
+
+		final long end;
+
+		final long first;
+
+		final long last;
+
+		final long verbs;
+
+		final long types;
+
+		Entry(long offset, long end, long first, long last, long verbs,
+				long types) {
+			this.offset = offset;
+			this.end = end;
+			this.first = first;
+			this.last = last;
+			this.verbs = verbs;
+			this.types = types;
+		}
+
+		/**
+		 * @return an entry for a part of the log that is not indexed.
+		 */
+		static Entry unknown(long offset, long end) {
+			return new Entry(offset, end, Long.MIN_VALUE, Long.MAX_VALUE, -1L,
+					-1L);
+		}
+
+		/**
+		 * @return true if the block may hold events between {@code from} and
+		 *         {@code to} (ms, inclusive) with one of the verbs and one of
+		 *         the types (0 masks match anything).
+		 */
+		boolean matches(long from, long to, long verbMask, long typeMask) {
+			return first <= to && last >= from
+					&& (verbMask == 0 || (verbs & verbMask) != 0)
+					&& (typeMask == 0 || (types & typeMask) != 0);
+		}
+	}
+
+	/**
+	 * @return the index file of a log.
+	 */
+	static File indexOf(File log) {
+		return new File(log.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Reads the index of a log, filling the gaps between its entries (and
+	 * up to {@code length}) with unknown entries.
+	 */
+	static List<Entry> read(File log, long length) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		long covered = 0;
+		File index = indexOf(log);
+		if (index.isFile()) {
+			try (FileChannel channel = FileChannel.open(index.toPath(),
+					StandardOpenOption.READ)) {
+				ByteBuffer buffer = ByteBuffer
+						.allocate((int) (channel.size() / ENTRY * ENTRY));
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, buffer.position()) < 0) {
+						break;
+					}
+				}
+				buffer.flip();
+				while (buffer.remaining() >= ENTRY) {
+					Entry entry = new Entry(buffer.getLong(), buffer.getLong(),
+							buffer.getLong(), buffer.getLong(),
+							buffer.getLong(), buffer.getLong());
+					if (entry.offset < covered || entry.end > length) {
+						// not this log's (or it was truncated)
+						break;
+					}
+					if (entry.offset > covered) {
+						entries.add(Entry.unknown(covered, entry.offset));
+					}
+					entries.add(entry);
+					covered = entry.end;
+				}
+			}
+		}
+		if (covered < length) {
+			entries.add(Entry.unknown(covered, length));
+		}
+		return entries;
+	}
+
+	/**
+	 * Appends the entries of a log as batches are written to it.
+	 * 
+	 * Not thread-safe: it is only used with its log.
+	 */
+	static class Writer implements Closeable {
+
+		private final FileChannel channel;
+
+		private final ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+
+		/** Start of the current block, or -1 if there is none */
+		private long offset;
+
+		private long end;
+
+		private long first;
+
+		private long last;
+
+		private long verbs;
+
+		private long types;
+
+		/**
+		 * Opens the index of a log, dropping a torn last entry.
+		 */
+		Writer(File log) throws IOException {
+			channel = FileChannel.open(indexOf(log).toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			long size = channel.size() / ENTRY * ENTRY;
+			channel.truncate(size);
+			channel.position(size);
+			reset(-1);
+		}
+
+		/**
+		 * Adds a batch written to the log from {@code offset} to {@code end}.
+		 * 
+		 * @param events
+		 *            the events in the batch, or null if they are not known.
+		 */
+		void add(long offset, long end, List<TrackerEvent> events)
+				throws IOException {
+			if (this.end != offset) {
+				// not contiguous (or no block yet): a new block starts here
+				write();
+				reset(offset);
+			}
+			this.end = end;
+			if (events == null) {
+				first = Long.MIN_VALUE;
+				last = Long.MAX_VALUE;
+				verbs = -1L;
+				types = -1L;
+			} else {
+				for (TrackerEvent event : events) {
+					long time = event.getTimeStamp().toEpochMilli();
+					first = Math.min(first, time);
+					last = Math.max(last, time);
+					verbs |= 1L << BinaryTraceEncoder.verbCode(event.getEvent());
+					types |= 1L << BinaryTraceEncoder
+							.typeCode(event.getTarget().getType());
+				}
+			}
+			if (this.end - this.offset >= BLOCK_SIZE) {
+				write();
+				reset(-1);
+			}
+		}
+
+		/**
+		 * Writes the entry of the last block.
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				write();
+			} finally {
+				channel.close();
+			}
+		}
+
+		private void reset(long offset) {
+			this.offset = offset;
+			this.end = offset;
+			first = Long.MAX_VALUE;
+			last = Long.MIN_VALUE;
+			verbs = 0;
+			types = 0;
+		}
+
+		private void write() throws IOException {
+			if (offset < 0 || end <= offset) {
+				return;
+			}
+			entry.clear();
+			entry.putLong(offset).putLong(end).putLong(first).putLong(last)
+					.putLong(verbs).putLong(types);
+			entry.flip();
+			while (entry.hasRemaining()) {
+				channel.write(entry);
+			}
+		}
+	}
+}
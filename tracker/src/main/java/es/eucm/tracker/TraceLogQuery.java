@@ -0,0 +1,175 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads the lines of a local log (see
+ * {@link TrackerSettings#setLogDirectory(String)}) that may hold traces in a
+ * time range, with some verbs and/or activity types. The log's index is used
+ * to seek straight to the blocks that may match, skipping the rest:
+ * 
+ * <pre>
+ * new TraceLogQuery(log).between(start, end)
+ * 		.verbs(TraceVerb.Verb.Completed).read(line -&gt; ...);
+ * </pre>
+ * 
+ * Whole blocks are read, so lines must still be filtered (e.g. once
+ * unmarshalled) to keep only the exact matches. Compressed segments (see
+ * {@link TrackerSettings#setCompactLogs(boolean)}) are read in the same way,
+ * through the name they had before being compressed.
+ */
+public class TraceLogQuery {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final File log;
+
+	private long from = Long.MIN_VALUE;
+
+	private long to = Long.MAX_VALUE;
+
+	private long verbMask;
+
+	private long typeMask;
+
+	public TraceLogQuery(File log) {
+		this.log = log;
+	}
+
+	/**
+	 * Only reads traces from {@code from} to {@code to} (inclusive).
+	 */
+	public TraceLogQuery between(Instant from, Instant to) {
+		this.from = from.toEpochMilli();
+		this.to = to.toEpochMilli();
+		return this;
+	}
+
+	/**
+	 * Only reads traces with one of these verbs.
+	 */
+	public TraceLogQuery verbs(TraceVerb.Verb... verbs) {
+		for (TraceVerb.Verb verb : verbs) {
+			verbMask |= 1L << (verb.ordinal() + 1);
+		}
+		return this;
+	}
+
+	/**
+	 * Only reads traces with one of these activity types (e.g. "zone").
+	 */
+	public TraceLogQuery types(String... types) {
+		for (String type : types) {
+			typeMask |= 1L << BinaryTraceEncoder.typeCode(type);
+		}
+		return this;
+	}
+
+	/**
+	 * Reads the lines of the blocks that may match, in order.
+	 */
+	public void read(Consumer<String> lines) throws IOException {
+		File compressed = new File(log.getPath() + CompressedBlocks.EXTENSION);
+		if (!log.isFile() && compressed.isFile()) {
+			try (CompressedBlocks.Reader reader = new CompressedBlocks.Reader(
+					compressed)) {
+				for (long[] range : ranges(reader.length())) {
+					reader.seek(range[0]);
+					readLines(reader, range[1] - range[0], lines);
+				}
+			}
+		} else {
+			try (FileChannel channel = FileChannel.open(log.toPath(),
+					StandardOpenOption.READ)) {
+				InputStream in = Channels.newInputStream(channel);
+				for (long[] range : ranges(channel.size())) {
+					channel.position(range[0]);
+					readLines(in, range[1] - range[0], lines);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the {@code [start, end)} parts of the log to read, adjacent
+	 *         matching blocks merged.
+	 */
+	List<long[]> ranges(long length) throws IOException {
+		List<long[]> ranges = new ArrayList<>();
+		long[] last = null;
+		for (TraceIndex.Entry entry : TraceIndex.read(log, length)) {
+			if (!entry.matches(from, to, verbMask, typeMask)) {
+				continue;
+			}
+			if (last != null && last[1] == entry.offset) {
+				last[1] = entry.end;
+			} else {
+				last = new long[] { entry.offset, entry.end };
+				ranges.add(last);
+			}
+		}
+		return ranges;
+	}
+
+	private static void readLines(InputStream in, long length,
+			Consumer<String> lines) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+		while (length > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+			if (n < 0) {
+				break;
+			}
+			length -= n;
+			int start = 0;
+			for (int i = 0; i < n; i++) {
+				if (buffer[i] == '\n') {
+					line.write(buffer, start, i - start);
+					emit(line, lines);
+					start = i + 1;
+				}
+			}
+			line.write(buffer, start, n - start);
+		}
+		emit(line, lines);
+	}
+
+	private static void emit(ByteArrayOutputStream line,
+			Consumer<String> lines) {
+		int size = line.size();
+		byte[] bytes = line.toByteArray();
+		if (size > 0 && bytes[size - 1] == '\r') {
+			size--;
+		}
+		if (size > 0) {
+			lines.accept(new String(bytes, 0, size, StandardCharsets.UTF_8));
+		}
+		line.reset();
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.util.function.Consumer;
+
+/**
+ * Queue of traces waiting to be flushed: written by any number of producer
+ * threads, consumed by one flushing thread at a time.
+ *
+ * @see ConcurrentQueue
+ * @see StripedQueue
+ */
+interface TraceQueue<T> {
+
+	/**
+	 * Number of queued elements.
+	 */
+	int getCount();
+
+	void enqueue(T obj);
+
+	/**
+	 * Hands the oldest elements not yet reserved to {@code consumer}, without
+	 * removing them from the queue. Successive calls continue where the
+	 * previous one stopped, until {@link #commit()} or {@link #rollback()}.
+	 *
+	 * @return the number of elements handed out.
+	 */
+	int drainTo(Consumer<? super T> consumer, int max);
+
+	/**
+	 * Removes the elements handed out by {@link #drainTo(Consumer, int)}.
+	 */
+	void commit();
+
+	/**
+	 * Keeps the elements handed out by {@link #drainTo(Consumer, int)} in the
+	 * queue.
+	 */
+	void rollback();
+
+	/**
+	 * Removes the oldest element.
+	 *
+	 * @throws java.util.NoSuchElementException
+	 *             if the queue is empty.
+	 */
+	T dequeue();
+
+	void clear();
+}
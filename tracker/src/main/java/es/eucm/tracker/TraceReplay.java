@@ -0,0 +1,500 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import es.eucm.tracker.TrackerSettings.TraceFormats;
+
+/**
+ * Sends backup files (CSV, see
+ * {@link TrackerSettings#setBackupStorage(boolean)}) to the collector again,
+ * e.g. after it has been down:
+ * 
+ * <pre>
+ * new TraceReplay(tracker).checkpoint(new File("backup.replay"))
+ * 		.replay(Arrays.asList(files));
+ * </pre>
+ * 
+ * Files are read with a {@link CsvTraceReader}, and their traces re-batched
+ * into batches of about {@link #batchSize(int)} chars, marshalled in the
+ * tracker's format and posted to the collector through the bridge of the
+ * (started) tracker, with up to {@link #maxInFlight(int)} requests at a time:
+ * the bridge must allow concurrent requests. Replayed batches do not go
+ * through the tracker's queue, pending batches or logs. Compressed log
+ * segments (see {@link TrackerSettings#setCompactLogs(boolean)}) are read
+ * through the name they had before being compressed.
+ * 
+ * Once a batch and every batch before it have been sent, the position after
+ * it is saved in the checkpoint file, so a replay that fails or is
+ * interrupted resumes from there when run again with the same files; batches
+ * that were in flight may then be sent twice. A last line without line
+ * separator (still being written) is left for the next replay, and lines
+ * that cannot be unmarshalled are skipped (see {@link #getSkippedLines()}).
+ */
+public class TraceReplay {
+
+	/** Default size of the batches sent, in chars */
+	public static final int DEFAULT_BATCH_SIZE = 256 * 1024;
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/** Delay before the first retry, doubled on each retry */
+	private static final long RETRY_DELAY = 1000;
+
+	private final TrackerAsset tracker;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+	private int retries = 3;
+
+	private File checkpoint;
+
+	private long skippedLines;
+
+	/** Batches being sent; acquired before sending */
+	private Semaphore inFlight;
+
+	/** Batches sent before those still in flight, guarded by {@link #sent} */
+	private long committed;
+
+	/** Batches sent while an older one was in flight, by sequence */
+	private final TreeMap<Long, Batch> sent = new TreeMap<>();
+
+	private final AtomicLong sentTraces = new AtomicLong();
+
+	private volatile String failure;
+
+	/**
+	 * @param tracker
+	 *            started tracker, with a NET storage.
+	 */
+	public TraceReplay(TrackerAsset tracker) {
+		this.tracker = tracker;
+	}
+
+	/**
+	 * Sends batches of about {@code batchSize} chars, once marshalled.
+	 */
+	public TraceReplay batchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+		return this;
+	}
+
+	/**
+	 * Sends up to {@code maxInFlight} batches at a time.
+	 */
+	public TraceReplay maxInFlight(int maxInFlight) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+		return this;
+	}
+
+	/**
+	 * Retries sending a batch {@code retries} times before giving up.
+	 */
+	public TraceReplay retries(int retries) {
+		this.retries = Math.max(0, retries);
+		return this;
+	}
+
+	/**
+	 * Saves progress in {@code checkpoint}, and resumes from it.
+	 */
+	public TraceReplay checkpoint(File checkpoint) {
+		this.checkpoint = checkpoint;
+		return this;
+	}
+
+	/**
+	 * @return lines skipped by the last replay because they could not be
+	 *         unmarshalled.
+	 */
+	public long getSkippedLines() {
+		return skippedLines;
+	}
+
+	/**
+	 * Sends the traces of {@code files}, in order, from the checkpoint (if
+	 * any).
+	 * 
+	 * @return the number of traces sent.
+	 * @throws IOException
+	 *             if a file cannot be read, or a batch cannot be sent; the
+	 *             checkpoint keeps the position before it.
+	 */
+	public synchronized long replay(List<File> files) throws IOException {
+		if (!tracker.isStarted()) {
+			throw new IllegalStateException("Tracker must be started");
+		}
+		if (((TrackerAssetSettings) tracker.getSettings())
+				.getStorageType() != TrackerAssetSettings.StorageTypes.NET) {
+			throw new IllegalStateException("Tracker must have a NET storage");
+		}
+		int first = 0;
+		long position = 0;
+		Map<?, ?> saved = readCheckpoint();
+		if (saved != null) {
+			String file = String.valueOf(saved.get("file"));
+			first = -1;
+			for (int i = 0; i < files.size() && first < 0; i++) {
+				if (files.get(i).getAbsolutePath().equals(file)) {
+					first = i;
+				}
+			}
+			if (first < 0) {
+				throw new IOException("Checkpoint " + checkpoint
+						+ " is not a position of the files to replay");
+			}
+			position = ((Number) saved.get("offset")).longValue();
+		}
+
+		skippedLines = 0;
+		committed = 0;
+		sent.clear();
+		sentTraces.set(0);
+		failure = null;
+		inFlight = new Semaphore(maxInFlight);
+		ExecutorService senders = Executors.newFixedThreadPool(maxInFlight,
+				r -> {
+					Thread thread = new Thread(r, "tracker-replay");
+					thread.setDaemon(true);
+					return thread;
+				});
+		Batcher batcher = new Batcher(senders);
+		boolean interrupted = false;
+		try {
+			for (int i = first; i < files.size() && failure == null; i++) {
+				replay(files.get(i), i == first ? position : 0, batcher);
+			}
+		} catch (InterruptedException e) {
+			interrupted = true;
+			failure = "Replay interrupted";
+		} finally {
+			// wait for the batches in flight
+			inFlight.acquireUninterruptibly(maxInFlight);
+			senders.shutdown();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(failure);
+		}
+		if (failure != null) {
+			throw new IOException(failure);
+		}
+		return sentTraces.get();
+	}
+
+	private void replay(File file, long position, Batcher batcher)
+			throws IOException, InterruptedException {
+		File compressed = new File(file.getPath() + CompressedBlocks.EXTENSION);
+		InputStream in;
+		if (!file.isFile() && compressed.isFile()) {
+			CompressedBlocks.Reader reader = new CompressedBlocks.Reader(
+					compressed);
+			reader.seek(Math.min(position, reader.length()));
+			in = reader;
+		} else {
+			FileInputStream stream = new FileInputStream(file);
+			stream.getChannel().position(position);
+			in = stream;
+		}
+		try (CsvTraceReader reader = new CsvTraceReader(in)) {
+			reader.setPartialLine(false);
+			reader.skipInvalid(e -> skippedLines++);
+			batcher.open(file.getAbsolutePath());
+			while (failure == null && reader.hasNext()) {
+				TrackerEvent event = reader.next();
+				batcher.add(event, position + reader.getPosition());
+			}
+			batcher.end = position + reader.getPosition();
+			batcher.submit();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Re-batches the traces of a file.
+	 */
+	private class Batcher {
+
+		private final ExecutorService senders;
+
+		private String file;
+
+		private StringBuilder data;
+
+		private BatchEncoder encoder;
+
+		/** Position after the last line added */
+		private long end;
+
+		private long sequence;
+
+		Batcher(ExecutorService senders) {
+			this.senders = senders;
+		}
+
+		void open(String file) throws IOException {
+			this.file = file;
+			data = new StringBuilder(batchSize + BUFFER_SIZE);
+			encoder = tracker.newBatchEncoder();
+			encoder.open(data);
+		}
+
+		void add(TrackerEvent event, long end)
+				throws IOException, InterruptedException {
+			this.end = end;
+			encoder.append(event, tracker);
+			if (data.length() >= batchSize) {
+				submit();
+				open(file);
+			}
+		}
+
+		/**
+		 * Sends the current batch, once there is room in flight.
+		 */
+		void submit() throws IOException, InterruptedException {
+			int count = encoder.getCount();
+			if (count == 0) {
+				return;
+			}
+			encoder.close();
+			Batch batch = new Batch(sequence++, data, count, file, end);
+			inFlight.acquire();
+			if (failure != null) {
+				inFlight.release();
+				return;
+			}
+			senders.execute(() -> send(batch));
+		}
+	}
+
+	private void send(Batch batch) {
+		try {
+			for (int attempt = 0;; attempt++) {
+				if (tracker.postTraces(batch.data, batch.count)
+						.GetResultAllowed()) {
+					sentTraces.addAndGet(batch.count);
+					commit(batch);
+					return;
+				}
+				if (attempt == retries || failure != null) {
+					failure = String.format(
+							"Traces of %s before %s could not be sent",
+							batch.file, batch.end);
+					return;
+				}
+				Thread.sleep(RETRY_DELAY << attempt);
+			}
+		} catch (InterruptedException e) {
+			failure = "Replay interrupted";
+		} catch (IOException e) {
+			failure = "Error saving checkpoint " + checkpoint + ": " + e;
+		} finally {
+			inFlight.release();
+		}
+	}
+
+	/**
+	 * Saves the position after the last batch sent with all the batches
+	 * before it.
+	 */
+	private void commit(Batch batch) throws IOException {
+		synchronized (sent) {
+			sent.put(batch.sequence, batch);
+			Batch last = null;
+			Batch next;
+			while ((next = sent.remove(committed)) != null) {
+				last = next;
+				committed++;
+			}
+			if (last != null && checkpoint != null) {
+				writeCheckpoint(last);
+			}
+		}
+	}
+
+	private Map<?, ?> readCheckpoint() throws IOException {
+		if (checkpoint == null || !checkpoint.isFile()) {
+			return null;
+		}
+		String text = new String(Files.readAllBytes(checkpoint.toPath()),
+				StandardCharsets.UTF_8).trim();
+		return text.isEmpty() ? null : TrackerAsset.gson.fromJson(text,
+				Map.class);
+	}
+
+	/**
+	 * Replaces the checkpoint, which is never seen half written.
+	 */
+	private void writeCheckpoint(Batch batch) throws IOException {
+		Map<String, Object> entry = new LinkedHashMap<>();
+		entry.put("file", batch.file);
+		entry.put("offset", batch.end);
+		StringBuilder text = new StringBuilder(160);
+		JsonAppender.object(text, entry);
+		text.append(TrackerEventMarshaller.LINE_SEPARATOR);
+		File tmp = new File(checkpoint.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+		Files.move(tmp.toPath(), checkpoint.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static final class Batch {
+
+		final long sequence;
+
+		final CharSequence data;
+
+		final int count;
+
+		final String file;
+
+		/** Position after the batch's last line */
+		final long end;
+
+		Batch(long sequence, CharSequence data, int count, String file,
+				long end) {
+			this.sequence = sequence;
+			this.data = data;
+			this.count = count;
+			this.file = file;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Replays backup files from the command line:
+	 * 
+	 * <pre>
+	 * TraceReplay --host &lt;host&gt; --tracking-code &lt;code&gt; [--port &lt;port&gt;]
+	 * 		[--secure] [--base-path &lt;path&gt;] [--user-token &lt;token&gt;]
+	 * 		[--format &lt;format&gt;] [--batch-size &lt;chars&gt;]
+	 * 		[--in-flight &lt;requests&gt;] [--checkpoint &lt;file&gt;] &lt;file&gt;...
+	 * </pre>
+	 */
+	public static void main(String[] args) throws Exception {
+		TrackerAssetSettings settings = new TrackerAssetSettings();
+		settings.setStorageType(TrackerAssetSettings.StorageTypes.NET);
+		settings.setTraceFormat(TraceFormats.XAPI);
+		settings.setBasePath("/api/");
+		settings.setBackupStorage(false);
+		settings.setUserToken("");
+		int batchSize = DEFAULT_BATCH_SIZE;
+		int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+		File checkpoint = new File("replay.checkpoint");
+		List<File> files = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "--host":
+					settings.setHost(args[++i]);
+					break;
+				case "--port":
+					settings.setPort(Integer.parseInt(args[++i]));
+					break;
+				case "--secure":
+					settings.setSecure(true);
+					break;
+				case "--base-path":
+					settings.setBasePath(args[++i]);
+					break;
+				case "--tracking-code":
+					settings.setTrackingCode(args[++i]);
+					break;
+				case "--user-token":
+					settings.setUserToken(args[++i]);
+					break;
+				case "--format":
+					settings.setTraceFormat(TraceFormats.valueOf(args[++i]));
+					break;
+				case "--batch-size":
+					batchSize = Integer.parseInt(args[++i]);
+					break;
+				case "--in-flight":
+					maxInFlight = Integer.parseInt(args[++i]);
+					break;
+				case "--checkpoint":
+					checkpoint = new File(args[++i]);
+					break;
+				default:
+					files.add(new File(args[i]));
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException
+				| IllegalArgumentException e) {
+			files.clear();
+		}
+		if (files.isEmpty() || settings.getTrackingCode() == null) {
+			System.err.println("Usage: TraceReplay --host <host>"
+					+ " --tracking-code <code> [--port <port>] [--secure]"
+					+ " [--base-path <path>] [--user-token <token>]"
+					+ " [--format " + Arrays.toString(TraceFormats.values())
+					+ "] [--batch-size <chars>] [--in-flight <requests>]"
+					+ " [--checkpoint <file>] <file>...");
+			System.exit(2);
+		}
+
+		TrackerAsset tracker = TrackerAsset.getInstance();
+		tracker.setSettings(settings);
+		tracker.setBridge(new HttpWebServiceRequest(maxInFlight));
+		tracker.start();
+		if (!tracker.isActive()) {
+			System.err.println("Cannot start tracking " + settings.getHost());
+			System.exit(1);
+		}
+		try {
+			TraceReplay replay = new TraceReplay(tracker).batchSize(batchSize)
+					.maxInFlight(maxInFlight).checkpoint(checkpoint);
+			long traces = replay.replay(files);
+			System.out.printf("%d traces sent, %d lines skipped%n", traces,
+					replay.getSkippedLines());
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} finally {
+			tracker.stop();
+		}
+	}
+}
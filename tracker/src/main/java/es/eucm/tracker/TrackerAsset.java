@@ -19,14 +19,27 @@ import static es.eucm.tracker.TrackerUtils.check;
 import static es.eucm.tracker.TrackerUtils.checkExtension;
 import static es.eucm.tracker.TrackerUtils.checkIsTrue;
 import static es.eucm.tracker.TrackerUtils.isNullOrEmpty;
+import static es.eucm.tracker.TrackerUtils.utf8Length;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,6 +49,7 @@ import es.eucm.tracker.TrackerUtils.Logger;
 import es.eucm.tracker.TrackerUtils.XApiConstant;
 import es.eucm.tracker.exceptions.TraceException;
 import es.eucm.tracker.exceptions.TrackerException;
+import es.eucm.tracker.exceptions.UnmarshallingException;
 import es.eucm.tracker.exceptions.ValueExtensionException;
 import es.eucm.tracker.exceptions.XApiException;
 import eu.rageproject.asset.manager.BaseAsset;
@@ -69,28 +83,110 @@ public class TrackerAsset extends BaseAsset {
 
 	/** RegEx format pattern to extract a plain-quoted JSON Value. */
 	private static final String tokenRegex = "\"%s\":\"(.+?)\"";
-	private Pattern jsonAuthToken = Pattern
+	private static final Pattern jsonAuthToken = Pattern
 			.compile(String.format(tokenRegex, "authToken"));
-	private Pattern jsonPlayerId = Pattern
+	private static final Pattern jsonPlayerId = Pattern
 			.compile(String.format(tokenRegex, "playerId"));
-	private Pattern jsonSession = Pattern
+	private static final Pattern jsonSession = Pattern
 			.compile(String.format(tokenRegex, "session"));
-	private Pattern jsonObjectId = Pattern
+	private static final Pattern jsonObjectId = Pattern
 			.compile(String.format(tokenRegex, "objectId"));
-	private Pattern jsonToken = Pattern
+	private static final Pattern jsonToken = Pattern
 			.compile(String.format(tokenRegex, "token"));
-	private Pattern jsonHealth = Pattern
+	private static final Pattern jsonHealth = Pattern
 			.compile(String.format(tokenRegex, "status"));
 
+	/** Marshalling buffers, shared by the trackers flushing on a thread */
+	private static final ThreadLocal<StringBuilder> marshalBuffer = ThreadLocal
+			.withInitial(StringBuilder::new);
+
+	/** Larger marshalling buffers are not kept for reuse */
+	private static final int MAX_POOLED_BUFFER = 1 << 20;
+
+	/** Factory of this session; null for standalone trackers */
+	private final TrackerSessionFactory factory;
+
+	/** Preallocated queue slots */
+	private final int queueCapacity;
+
 	/** Queue of TrackerEvents to Send. */
-	private ConcurrentQueue<TrackerEvent> queue = new ConcurrentQueue<>();
+	private volatile TraceQueue<TrackerEvent> queue;
+
+	/** Serializes flushes: the queue only supports one consumer at a time */
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	/** Flushes in the background, if enabled in the settings */
+	private volatile FlushTrigger flushScheduler;
+
+	/** Runs asynchronous flushes; created on first use if not set */
+	private Executor flushExecutor;
+
+	/** Outcome of the ongoing flush */
+	private FlushResult flushResult;
 
 	/** List of traces flushed while the connection was offline */
-	private List<String> tracesPending = new ArrayList<>();
+	private List<TraceBatch> tracesPending = new ArrayList<>();
+
+	/** Number of traces in tracesPending */
+	private int pendingTraces;
+
+	/** Pending traces spilled to disk, if enabled in the settings */
+	private SpillQueue spill;
+
+	/**
+	 * Write-ahead log of the batches not yet sent, if enabled in the
+	 * settings. Its batches are those in tracesPending, in the same order,
+	 * plus the one being sent. Traces are logged once marshalled, which needs
+	 * an actor: unsentTraces are logged apart, in {@link #unsentLog}.
+	 */
+	private SpillQueue wal;
+
+	/**
+	 * Log of the unsentTraces, opened with the write-ahead log. They are
+	 * logged as BINARY batches, which need no actor, and queued again on
+	 * start.
+	 */
+	private SpillQueue unsentLog;
+
+	/** True if unsent traces were dropped since they were last logged */
+	private boolean unsentLogStale;
+
+	/** True while the last logged batch is neither sent nor pending */
+	private boolean walUncommitted;
+
+	/**
+	 * Pending batches dropped to make room, still at the head of the
+	 * write-ahead log until the next flush acknowledges them
+	 */
+	private int walDropped;
+
+	/** Local log written directly, if a log directory is set */
+	private SegmentedLog localLog;
+
+	/** Backup written directly, if a log directory is set */
+	private SegmentedLog backupLog;
+
+	/** Backup batches written since the backup was last synced */
+	private int unsyncedBackups;
 
-	/** List of traces queued when net storage unable to start */
+	/** Compresses sealed log segments, if enabled in the settings */
+	private SegmentCompactor compactor;
+
+	/**
+	 * List of traces queued when net storage unable to start; logged in the
+	 * unsentLog.
+	 */
 	private List<TrackerEvent> unsentTraces = new ArrayList<>();
 
+	/** Accounts for queued, pending and unsent traces against the limits */
+	private final TraceBacklog backlog = new TraceBacklog();
+
+	/** Traces offered while the backlog was full, for the SAMPLE policy */
+	private final AtomicLong sampled = new AtomicLong();
+
+	/** Dropped traces already reported in the log */
+	private long reportedDrops;
+
 	/** List of Extensions that have to ve added to the next trace */
 	private Map<String, Object> extensions = new HashMap<>();
 
@@ -105,7 +201,7 @@ public class TrackerAsset extends BaseAsset {
 	/**
 	 * The tracker has been started
 	 */
-	private boolean started = false;
+	private volatile boolean started = false;
 	/**
 	 * Active connection: ActorObject and ObjectId have been extracted.
 	 */
@@ -118,6 +214,10 @@ public class TrackerAsset extends BaseAsset {
 	 * Server health, retrieved by checkHealth
 	 */
 	private String health = "";
+	/**
+	 * Compression was requested without a streaming bridge, and reported
+	 */
+	private volatile boolean compressionUnsupported = false;
 
 	// general xapi information
 
@@ -199,9 +299,15 @@ public class TrackerAsset extends BaseAsset {
 		TrackerUtils.setLogger(new Logger() {
 			@Override
 			public void log(Severity severity, String message) {
-				INSTANCE.log(severity, message);
+				TrackerAsset instance = INSTANCE;
+				if (instance != null) {
+					instance.log(severity, message);
+				}
 			}
 		});
+		factory = null;
+		queueCapacity = ConcurrentQueue.DEFAULT_CAPACITY;
+		queue = new ConcurrentQueue<>(queueCapacity);
 
 		// BEGIN - XXX workaround for BaseAsset#loadSettings(String)
 		settings = new TrackerAssetSettings();
@@ -226,6 +332,22 @@ public class TrackerAsset extends BaseAsset {
 			setSettings(defaultSettings);
 		}
 
+		createSubTrackers();
+	}
+
+	/**
+	 * Creates a session of a {@link TrackerSessionFactory}: neither the
+	 * settings file nor the global logger are touched.
+	 */
+	TrackerAsset(TrackerSessionFactory factory, TrackerAssetSettings settings) {
+		this.factory = factory;
+		queueCapacity = TrackerSessionFactory.SESSION_QUEUE_CAPACITY;
+		queue = new ConcurrentQueue<>(queueCapacity);
+		setSettings(settings);
+		createSubTrackers();
+	}
+
+	private void createSubTrackers() {
 		TraceProcessor bridge = new TraceProcessorBridge();
 		accessibleTracker = new AccessibleTracker(bridge);
 		alternativeTracker = new AlternativeTracker(bridge);
@@ -264,19 +386,47 @@ public class TrackerAsset extends BaseAsset {
 		}
 
 		this.settings = (TrackerAssetSettings) settings;
+		backlog.setLimits(this.settings.getMaxQueuedTraces(),
+				this.settings.getMaxQueuedBytes());
+		if (this.settings.isStripedQueue() != (queue instanceof StripedQueue)) {
+			switchQueue(this.settings.isStripedQueue()
+					? new StripedQueue<>(
+							Comparator.comparing(TrackerEvent::getTimeStamp))
+					: new ConcurrentQueue<>(queueCapacity));
+		}
 		switch (this.settings.getTraceFormat()) {
 		case JSON:
 			this.marshaller = new JsonTrackerEventMarshaller();
 		case XAPI:
+		case NDJSON:
 			this.marshaller = new XapiTrackerEventMarshaller();
 			break;
 		case CSV:
+		case BINARY:
 		default:
+			// BINARY batches are encoded whole; CSV is used for backups
 			this.marshaller = new CsvTrackerEventMarshaller();
 			break;
 		}
 	}
 
+	/**
+	 * Replaces the queue, keeping the traces already queued (in order).
+	 */
+	private void switchQueue(TraceQueue<TrackerEvent> next) {
+		flushLock.lock();
+		try {
+			TraceQueue<TrackerEvent> previous = queue;
+			queue = next;
+			// producers that read the previous queue may still add to it
+			while (previous.getCount() > 0) {
+				next.enqueue(previous.dequeue());
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
 	/**
 	 * Checks the health of the analytics server.
 	 * 
@@ -301,7 +451,86 @@ public class TrackerAsset extends BaseAsset {
 	 * Flushes the queue.
 	 */
 	public void flush() {
-		processQueue();
+		flushAndReport();
+	}
+
+	/**
+	 * Flushes the queue without blocking the caller.
+	 * 
+	 * @return the outcome of the flush; completes exceptionally if the flush
+	 *         fails.
+	 */
+	public CompletableFuture<FlushResult> flushAsync() {
+		return CompletableFuture.supplyAsync(this::flushAndReport,
+				getFlushExecutor());
+	}
+
+	private FlushResult flushAndReport() {
+		flushLock.lock();
+		try {
+			FlushResult result = new FlushResult();
+			flushResult = result;
+			try {
+				processQueue();
+			} finally {
+				flushResult = null;
+			}
+			result.setPendingTraces(pendingTraces + unsentTraces.size()
+					+ (spill == null ? 0 : spill.getTraceCount()));
+			return result;
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the executor for {@link #flushAsync()} and {@link #exitAsync()}.
+	 * By default, a single daemon thread (or virtual threads, if enabled in
+	 * the settings) is used.
+	 */
+	public void setFlushExecutor(Executor flushExecutor) {
+		this.flushExecutor = flushExecutor;
+	}
+
+	private synchronized Executor getFlushExecutor() {
+		if (flushExecutor == null && settings.isVirtualThreads()) {
+			flushExecutor = TrackerUtils.newVirtualThreadExecutor();
+			if (flushExecutor == null) {
+				log(Severity.Warning,
+						"Virtual threads not available, flushing from a platform thread");
+			}
+		}
+		if (flushExecutor == null) {
+			// flushes are serialized anyway: one thread, released when idle
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+						Thread t = new Thread(r, "tracker-flush-async");
+						t.setDaemon(true);
+						return t;
+					});
+			executor.allowCoreThreadTimeOut(true);
+			flushExecutor = executor;
+		}
+		return flushExecutor;
+	}
+
+	/**
+	 * Flush run by the {@link FlushScheduler}: skips empty flushes and logs
+	 * errors instead of killing the flush thread.
+	 */
+	private void backgroundFlush() {
+		flushLock.lock();
+		try {
+			if (!started || (queue.getCount() == 0 && !hasPendingTraces()
+					&& unsentTraces.isEmpty())) {
+				return;
+			}
+			flushAndReport();
+		} catch (RuntimeException e) {
+			log(Severity.Error, "Background flush failed: %s", e);
+		} finally {
+			flushLock.unlock();
+		}
 	}
 
 	/**
@@ -387,6 +616,21 @@ public class TrackerAsset extends BaseAsset {
 	 * TrackingCode (Shown at Game on a2 server).
 	 */
 	public void start() {
+		if (settings.getWalDirectory() != null && wal == null) {
+			openWal();
+		}
+		if (settings.getSpillDirectory() != null && spill == null
+				&& wal == null) {
+			openSpill();
+		}
+		if (settings.isCompactLogs() && settings.getLogDirectory() != null
+				&& compactor == null) {
+			compactor = new SegmentCompactor(
+					new File(settings.getLogDirectory()),
+					e -> log(Severity.Warning,
+							"Error compacting log segments: %s", e));
+			compactor.start();
+		}
 		started = true;
 		switch (settings.getStorageType()) {
 		case NET:
@@ -396,11 +640,24 @@ public class TrackerAsset extends BaseAsset {
 			// Allow LocalStorage if a Bridge is implementing IDataStorage.
 			//
 			IDataStorage tmp = getInterface(IDataStorage.class);
-			connected = (tmp != null);
-			active = (tmp != null);
+			boolean local = tmp != null || settings.getLogDirectory() != null;
+			connected = local;
+			active = local;
 			break;
 		}
 		}
+
+		if (settings.isBackgroundFlush() && flushScheduler == null) {
+			if (factory != null) {
+				flushScheduler = factory.newTrigger(this::backgroundFlush,
+						settings.getMaxFlushLatency());
+			} else {
+				FlushScheduler scheduler = new FlushScheduler(
+						this::backgroundFlush, settings.getMaxFlushLatency());
+				scheduler.start();
+				flushScheduler = scheduler;
+			}
+		}
 	}
 
 	private void doStart() {
@@ -483,12 +740,33 @@ public class TrackerAsset extends BaseAsset {
 	 * Starts with a trackingCode (and with the already extracted UserToken).
 	 */
 	public void stop() {
-		active = false;
-		connected = false;
-		started = false;
-		actorObject = null;
-		queue = new ConcurrentQueue<>();
-		tracesPending = new ArrayList<>();
+		stopFlushScheduler();
+		flushLock.lock();
+		try {
+			active = false;
+			connected = false;
+			started = false;
+			actorObject = null;
+			queue.clear();
+			tracesPending = new ArrayList<>();
+			pendingTraces = 0;
+			// spilled and logged traces are kept until the next start
+			closeSpill();
+			walAckDropped();
+			closeWal();
+			// segments sealed from now on are compacted on the next start
+			if (compactor != null) {
+				compactor.stop();
+				compactor = null;
+			}
+			closeLocalLogs();
+			// unsent traces are kept until the next start
+			backlog.reset();
+			backlog.add(unsentTraces.size(),
+					TraceBacklog.estimateSize(unsentTraces));
+		} finally {
+			flushLock.unlock();
+		}
 	}
 
 	/**
@@ -496,14 +774,303 @@ public class TrackerAsset extends BaseAsset {
 	 */
 	public void exit() {
 		exiting = true;
+		stopFlushScheduler();
 		flush();
 	}
 
+	/**
+	 * Exits without blocking the caller: the last flush runs as in
+	 * {@link #flushAsync()}.
+	 * 
+	 * @return the outcome of the last flush; the traces are safe once it
+	 *         completes with {@link FlushResult#isComplete()}.
+	 */
+	public CompletableFuture<FlushResult> exitAsync() {
+		exiting = true;
+		return CompletableFuture.supplyAsync(() -> {
+			stopFlushScheduler();
+			return flushAndReport();
+		}, getFlushExecutor());
+	}
+
+	private void openSpill() {
+		try {
+			spill = new SpillQueue(new File(settings.getSpillDirectory()),
+					SpillQueue.DEFAULT_SEGMENT_SIZE);
+			if (!spill.isEmpty()) {
+				log(Severity.Information, "Recovered spilled trace-blocks: %s",
+						spill.getBatchCount());
+			}
+		} catch (IOException e) {
+			log(Severity.Error, "Error opening spill directory %s: %s",
+					settings.getSpillDirectory(), e);
+		}
+	}
+
+	/**
+	 * Opens the write-ahead log, replaying the batches it holds as pending.
+	 * Spilling is not needed with it: pending batches are already on disk.
+	 */
+	private void openWal() {
+		if (settings.getSpillDirectory() != null) {
+			log(Severity.Warning,
+					"Spill directory ignored: pending traces are kept in the write-ahead log");
+		}
+		try {
+			wal = new SpillQueue(new File(settings.getWalDirectory()),
+					SpillQueue.DEFAULT_SEGMENT_SIZE);
+			wal.forEach(batch -> {
+				tracesPending.add(batch);
+				pendingTraces += batch.getSize();
+				backlog.add(batch.getSize(), batch.getBytes());
+			});
+			if (!wal.isEmpty()) {
+				log(Severity.Information,
+						"Recovered unacknowledged trace-blocks: %s",
+						wal.getBatchCount());
+			}
+			unsentLog = new SpillQueue(
+					new File(settings.getWalDirectory(), "unsent"),
+					SpillQueue.DEFAULT_SEGMENT_SIZE);
+			if (!unsentTraces.isEmpty()) {
+				// kept since the last stop: logged again on the next flush
+				unsentLogStale = true;
+			} else {
+				BinaryTrackerEventUnmarshaller unmarshaller = new BinaryTrackerEventUnmarshaller();
+				unsentLog.forEach(batch -> {
+					try {
+						unsentTraces.addAll(
+								unmarshaller.unmarshalBatch(batch.getData()));
+					} catch (UnmarshallingException e) {
+						log(Severity.Warning, "Invalid unsent traces: %s", e);
+					}
+				});
+				if (!unsentTraces.isEmpty()) {
+					backlog.add(unsentTraces.size(),
+							TraceBacklog.estimateSize(unsentTraces));
+					log(Severity.Information, "Recovered unsent traces: %s",
+							unsentTraces.size());
+				}
+			}
+		} catch (IOException e) {
+			log(Severity.Error, "Error opening write-ahead log %s: %s",
+					settings.getWalDirectory(), e);
+			closeWal();
+		}
+	}
+
+	/**
+	 * Logs a batch before sending it. On errors the log is closed, as it
+	 * would no longer match tracesPending.
+	 */
+	private void walAppend(CharSequence data, int traces) {
+		if (wal != null) {
+			try {
+				wal.append(new TraceBatch(data.toString(), traces));
+				walUncommitted = true;
+			} catch (IOException e) {
+				log(Severity.Error, "Error writing write-ahead log: %s", e);
+				closeWal();
+			}
+		}
+	}
+
+	/**
+	 * Acknowledges the oldest logged batch, once sent (or dropped).
+	 */
+	private void walAck() {
+		walUncommitted = false;
+		if (wal != null) {
+			try {
+				wal.remove();
+			} catch (IOException e) {
+				log(Severity.Error, "Error writing write-ahead log: %s", e);
+				closeWal();
+			}
+		}
+	}
+
+	/**
+	 * Takes back the batch just logged if it was neither sent nor kept
+	 * pending: its traces go back to the queue, and would be logged again.
+	 */
+	private void walUndo() {
+		if (walUncommitted && wal != null) {
+			wal.undoAppend();
+		}
+		walUncommitted = false;
+	}
+
+	/**
+	 * Acknowledges the batches dropped since the last flush, which are the
+	 * oldest logged ones, and logs the unsent traces again if some of them
+	 * were dropped; to be called before logging or acknowledging any other
+	 * batch.
+	 */
+	private void walAckDropped() {
+		while (walDropped > 0) {
+			walDropped--;
+			walAck();
+		}
+		if (unsentLogStale) {
+			unsentLogStale = false;
+			walClearUnsent();
+			walLogUnsent(unsentTraces);
+		}
+	}
+
+	/**
+	 * Logs traces added to unsentTraces. On errors the unsent log is closed,
+	 * as it would no longer match them.
+	 */
+	private void walLogUnsent(List<TrackerEvent> traces) {
+		if (unsentLog != null && !traces.isEmpty()) {
+			String data = processTraces(traces,
+					TrackerAssetSettings.TraceFormats.BINARY);
+			try {
+				unsentLog.append(new TraceBatch(data, traces.size()));
+			} catch (IOException e) {
+				log(Severity.Error, "Error writing unsent traces log: %s", e);
+				closeUnsentLog();
+			}
+		}
+	}
+
+	/**
+	 * Removes the logged unsent traces, once logged in the write-ahead log
+	 * (or dropped).
+	 */
+	private void walClearUnsent() {
+		if (unsentLog != null) {
+			try {
+				while (!unsentLog.isEmpty()) {
+					unsentLog.remove();
+				}
+			} catch (IOException e) {
+				log(Severity.Error, "Error writing unsent traces log: %s", e);
+				closeUnsentLog();
+			}
+		}
+	}
+
+	private void closeWal() {
+		walUncommitted = false;
+		walDropped = 0;
+		if (wal != null) {
+			try {
+				wal.close();
+			} catch (IOException e) {
+				log(Severity.Warning, "Error closing write-ahead log: %s", e);
+			}
+			wal = null;
+		}
+		closeUnsentLog();
+	}
+
+	private void closeUnsentLog() {
+		unsentLogStale = false;
+		if (unsentLog != null) {
+			try {
+				unsentLog.close();
+			} catch (IOException e) {
+				log(Severity.Warning, "Error closing unsent traces log: %s",
+						e);
+			}
+			unsentLog = null;
+		}
+	}
+
+	private void closeSpill() {
+		if (spill != null) {
+			try {
+				spill.close();
+			} catch (IOException e) {
+				log(Severity.Warning, "Error closing spill directory: %s", e);
+			}
+			spill = null;
+		}
+	}
+
+	private SegmentedLog getLocalLog() {
+		localLog = openLog(localLog, settings.getLogFile(),
+				settings.getTraceFormat());
+		return localLog;
+	}
+
+	private SegmentedLog getBackupLog() {
+		backupLog = openLog(backupLog, settings.getBackupFile(),
+				TrackerAssetSettings.TraceFormats.CSV);
+		return backupLog;
+	}
+
+	/**
+	 * @return {@code writer}, or a new log in the log directory if its
+	 *         directory, name or format changed; null if it cannot be opened.
+	 */
+	private SegmentedLog openLog(SegmentedLog writer, String name,
+			TrackerAssetSettings.TraceFormats format) {
+		File directory = new File(settings.getLogDirectory());
+		if (writer != null && writer.getDirectory().equals(directory)
+				&& writer.getName().equals(name)
+				&& writer.getFormat() == format) {
+			return writer;
+		}
+		closeLog(writer);
+		try {
+			SegmentedLog segmented = new SegmentedLog(directory, name, format,
+					settings.getLogSegmentSize(), settings.getLogSegmentAge());
+			segmented.setSealListener(() -> {
+				if (compactor != null) {
+					compactor.request();
+				}
+			});
+			return segmented;
+		} catch (IOException e) {
+			log(Severity.Error, "Error opening log file %s: %s",
+					new File(directory, name), e);
+			return null;
+		}
+	}
+
+	private void closeLog(SegmentedLog writer) {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				log(Severity.Warning, "Error closing log file %s: %s",
+						writer.getFile(), e);
+			}
+		}
+	}
+
+	private void closeLocalLogs() {
+		closeLog(localLog);
+		localLog = null;
+		closeLog(backupLog);
+		backupLog = null;
+		unsyncedBackups = 0;
+	}
+
+	private void stopFlushScheduler() {
+		if (flushScheduler != null) {
+			flushScheduler.stop();
+			flushScheduler = null;
+		}
+	}
+
 	/**
 	 * Clears the unflushed Trace queue and the unappended extensions queue
 	 */
 	public void clear() {
-		queue.clear();
+		flushLock.lock();
+		try {
+			while (queue.getCount() > 0) {
+				release(queue.dequeue());
+			}
+			queue.clear();
+		} finally {
+			flushLock.unlock();
+		}
 		extensions.clear();
 	}
 
@@ -522,7 +1089,163 @@ public class TrackerAsset extends BaseAsset {
 			extensions.clear();
 		}
 
+		if (!admit(trace)) {
+			return;
+		}
 		queue.enqueue(trace);
+
+		// with background flushing, wake up the flush thread once a full batch
+		// is waiting; the flush itself never runs on this thread
+		FlushTrigger scheduler = flushScheduler;
+		if (scheduler != null && settings.getBatchSize() > 0
+				&& queue.getCount() >= settings.getBatchSize()) {
+			scheduler.request();
+		}
+	}
+
+	/**
+	 * Accounts for a new trace in the backlog, applying the configured
+	 * {@link TrackerSettings.QueueFullPolicies} if it is full.
+	 * 
+	 * @return false if the trace has been dropped.
+	 */
+	private boolean admit(TrackerEvent trace) {
+		if (!backlog.isBounded()) {
+			return true;
+		}
+		long size = TraceBacklog.estimateSize(trace);
+		if (backlog.tryAdd(1, size)) {
+			return true;
+		}
+		boolean admitted = false;
+		switch (settings.getQueueFullPolicy()) {
+		case BLOCK:
+			// only a flush from another thread can make room
+			FlushTrigger scheduler = flushScheduler;
+			if (scheduler != null) {
+				scheduler.request();
+			}
+			admitted = backlog.awaitAdd(1, size,
+					settings.getQueueFullTimeout());
+			break;
+		case SAMPLE:
+			if (sampled.getAndIncrement()
+					% Math.max(1, settings.getQueueFullSampleRate()) != 0) {
+				break;
+			}
+			// keep the sampled trace, as with DROP_OLDEST
+		case DROP_OLDEST:
+			admitted = makeRoom(1, size);
+			break;
+		case DROP_NEWEST:
+		default:
+			break;
+		}
+		if (!admitted) {
+			backlog.dropped(1);
+		}
+		return admitted;
+	}
+
+	/**
+	 * Drops the oldest buffered traces until the given ones fit in the
+	 * backlog, and accounts for them. Does not wait for an ongoing flush: the
+	 * new traces are refused instead.
+	 * 
+	 * @return false if the traces do not fit.
+	 */
+	private boolean makeRoom(int n, long size) {
+		if (!flushLock.tryLock()) {
+			return false;
+		}
+		try {
+			while (!backlog.tryAdd(n, size)) {
+				if (!dropOldest()) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the oldest buffered traces: a pending batch, an unsent trace, or
+	 * the head of the queue. Must be called holding the flushLock.
+	 * 
+	 * @return false if there was nothing to drop.
+	 */
+	private boolean dropOldest() {
+		int n;
+		if (!tracesPending.isEmpty()) {
+			TraceBatch batch = tracesPending.remove(0);
+			if (wal != null) {
+				// acknowledged on the flush thread: trace() does no I/O
+				walDropped++;
+			}
+			pendingTraces -= batch.getSize();
+			backlog.remove(batch.getSize(), batch.getBytes());
+			n = batch.getSize();
+		} else if (!unsentTraces.isEmpty()) {
+			release(unsentTraces.remove(0));
+			// logged again on the flush thread
+			unsentLogStale = unsentLog != null;
+			n = 1;
+		} else if (queue.getCount() > 0) {
+			release(queue.dequeue());
+			n = 1;
+		} else {
+			return false;
+		}
+		backlog.dropped(n);
+		return true;
+	}
+
+	private void release(TrackerEvent trace) {
+		backlog.remove(1, TraceBacklog.estimateSize(trace));
+	}
+
+	private void release(List<TrackerEvent> traces) {
+		backlog.remove(traces.size(), TraceBacklog.estimateSize(traces));
+	}
+
+	/**
+	 * Keeps marshalled traces to be sent later.
+	 */
+	private void addPending(String data, List<TrackerEvent> traces) {
+		TraceBatch batch = new TraceBatch(data, traces.size());
+		walUncommitted = false;
+		release(traces);
+		if (!spill(batch)) {
+			tracesPending.add(batch);
+			pendingTraces += batch.getSize();
+			backlog.add(batch.getSize(), batch.getBytes());
+		}
+	}
+
+	/**
+	 * Spills a pending batch to disk once the watermark is reached (or once
+	 * there are spilled batches, to keep them in order).
+	 * 
+	 * @return false if the batch must be kept in memory.
+	 */
+	private boolean spill(TraceBatch batch) {
+		if (spill == null || (spill.isEmpty() && pendingTraces
+				+ batch.getSize() <= settings.getSpillWatermark())) {
+			return false;
+		}
+		try {
+			spill.append(batch);
+			return true;
+		} catch (IOException e) {
+			log(Severity.Error, "Error spilling traces: %s", e);
+			return false;
+		}
+	}
+
+	private boolean hasPendingTraces() {
+		return !tracesPending.isEmpty() || (spill != null && !spill.isEmpty());
 	}
 
 	/**
@@ -606,33 +1329,10 @@ public class TrackerAsset extends BaseAsset {
 		IWebServiceRequest ds = getInterface(IWebServiceRequest.class);
 		RequestResponse response = new RequestResponse();
 		if (ds != null) {
-			// ! allowedResponsCodes, // TODO default is ok
-			// or method.Equals("GET")?string.Empty:body
-			/*
-			 * RefSupport<RequestResponse> refVar___0 = new
-			 * RefSupport<RequestResponse>(); ds.WebServiceRequest(new
-			 * RequestSettings(),refVar___0); response = refVar___0.getValue();
-			 */
-
-			RequestSettings request = new RequestSettings();
-			try {
-				String url = String.format("http%s://%2$s%3$s%4$s/%5$s",
-						settings.isSecure() ? "s" : "", settings.getHost(),
-						port == 80 ? "" : String.format(":%d", port),
-						isNullOrEmpty(
-								settings.getBasePath().replaceAll("[/]+$", ""))
-										? ""
-										: settings.getBasePath()
-												.replaceAll("[/]+$", ""),
-						path.replaceAll("^/", ""));
-				request.uri = new URI(url);
-			} catch (URISyntaxException ex) {
-				System.out.println("Invalid URI");
+			RequestSettings request = newRequest(path, method, headers, port);
+			if (request == null) {
 				return response;
 			}
-
-			request.method = method;
-			request.requestHeaders = headers;
 			request.body = body;
 			response = ds.WebServiceRequest(request);
 		}
@@ -640,10 +1340,64 @@ public class TrackerAsset extends BaseAsset {
 		return response;
 	}
 
+	/**
+	 * Issue a HTTP POST whose body is written as bytes.
+	 * 
+	 * @param path
+	 *            Full pathname of the file.
+	 * @param headers
+	 *            The headers.
+	 * @param body
+	 *            Writes the body.
+	 * @param ds
+	 *            The bridge that sends the request.
+	 */
+	private RequestResponse issueRequest(String path,
+			Map<String, String> headers,
+			StreamingWebServiceRequest.BodyWriter body,
+			StreamingWebServiceRequest ds) {
+		RequestSettings request = newRequest(path, "POST", headers,
+				settings.getPort());
+		if (request == null) {
+			return new RequestResponse();
+		}
+		return ds.WebServiceRequest(request, body);
+	}
+
+	/**
+	 * Creates a request for a path of the server.
+	 * 
+	 * @return the request, or null if the URI is invalid.
+	 */
+	private RequestSettings newRequest(String path, String method,
+			Map<String, String> headers, Integer port) {
+		RequestSettings request = new RequestSettings();
+		try {
+			String url = String.format("http%s://%2$s%3$s%4$s/%5$s",
+					settings.isSecure() ? "s" : "", settings.getHost(),
+					port == 80 ? "" : String.format(":%d", port),
+					isNullOrEmpty(
+							settings.getBasePath().replaceAll("[/]+$", ""))
+									? ""
+									: settings.getBasePath()
+											.replaceAll("[/]+$", ""),
+					path.replaceAll("^/", ""));
+			request.uri = new URI(url);
+		} catch (URISyntaxException ex) {
+			log(Severity.Error, "Invalid URI for %s: %s", path, ex);
+			return null;
+		}
+
+		request.method = method;
+		request.requestHeaders = headers;
+		return request;
+	}
+
 	/**
 	 * Process the queue.
 	 */
 	private void processQueue() {
+		walAckDropped();
 		if (!started) {
 			log(Severity.Warning,
 					"Refusing to send traces without starting tracker (Active is False, should be True)");
@@ -652,81 +1406,229 @@ public class TrackerAsset extends BaseAsset {
 			doStart();
 		}
 
-		if (queue.getCount() > 0 || !tracesPending.isEmpty()
+		if (queue.getCount() > 0 || hasPendingTraces()
 				|| !unsentTraces.isEmpty()) {
+			// Send the queue in batches; traces enqueued while flushing are
+			// left for the next flush
+			int remaining = queue.getCount();
+			boolean online = true;
+			List<TrackerEvent> traces;
+			do {
+				// Extract the traces from the queue
+				traces = collectTraces();
+				try {
+					online = processBatch(traces, online);
+					// and remove them once processed
+					queue.commit();
+				} catch (RuntimeException e) {
+					queue.rollback();
+					walUndo();
+					throw e;
+				}
+				remaining -= traces.size();
+			} while (remaining > 0 && !traces.isEmpty());
+			syncBackup();
+			// marshalled batches may take more room than estimated
+			while (backlog.isOverLimit() && !tracesPending.isEmpty()) {
+				dropOldest();
+			}
+			walAckDropped();
+			reportDrops();
+		} else {
+			log(Severity.Information, "Nothing to flush");
+		}
+	}
 
-			// Extract the traces from the queue and remove from the queue
-			List<TrackerEvent> traces = collectTraces();
-			// Check if it is connected now
-			if (active) {
-				if (sendUnloggedTraces()) {
-					String data = processTraces(traces,
-							settings.getTraceFormat());
-					if ((!sendPendingTraces()
-							|| !(queue.getCount() > 0 && sendTraces(data)))
-							&& queue.getCount() > 0) {
-						tracesPending.add(data);
+	private void reportDrops() {
+		long dropped = backlog.getDropped();
+		if (dropped > reportedDrops) {
+			log(Severity.Warning, "Trace backlog full: %s traces dropped",
+					dropped - reportedDrops);
+			reportedDrops = dropped;
+		}
+	}
+
+	/**
+	 * Sends (or stores) a batch of traces.
+	 * 
+	 * @param traces
+	 *            batch to process; may be empty to just retry pending traces.
+	 * @param online
+	 *            false if a previous batch of this flush could not be sent, so
+	 *            that this one is kept pending without retrying.
+	 * @return false if the batch could not be sent.
+	 */
+	private boolean processBatch(List<TrackerEvent> traces, boolean online) {
+		boolean sent = true;
+		// the batch, once marshalled in the trace format
+		StringBuilder data = null;
+		// Check if it is connected now
+		if (active) {
+			if (!online) {
+				if (!traces.isEmpty()) {
+					data = marshalTraces(traces, settings.getTraceFormat());
+					walAppend(data, traces.size());
+					addPending(data.toString(), traces);
+				}
+				sent = false;
+			} else if (sendUnloggedTraces()) {
+				boolean pendingSent = sendPendingTraces();
+				if (!traces.isEmpty()) {
+					// sent straight from the marshalling buffer
+					data = marshalTraces(traces, settings.getTraceFormat());
+					walAppend(data, traces.size());
+					if (!pendingSent
+							|| !sendTraces(data, traces.size(), traces)) {
+						addPending(data.toString(), traces);
+						sent = false;
+					} else {
+						walAck();
+						release(traces);
 					}
 				}
 			} else {
-				unsentTraces.addAll(traces);
-			}
-			// if backup requested, save a copy
-			if (settings.isBackupStorage()) {
-				IDataStorage storage = getInterface(IDataStorage.class);
-				IAppend appendStorage = getInterface(IAppend.class);
-				if (queue.getCount() > 0) {
-					String rawData = processTraces(traces,
+				// no actor to send unlogged traces with: batch is lost
+				release(traces);
+				backlog.dropped(traces.size());
+			}
+		} else {
+			unsentTraces.addAll(traces);
+			walLogUnsent(traces);
+		}
+		// if backup requested, save a copy
+		if (settings.isBackupStorage()) {
+			IDataStorage storage = getInterface(IDataStorage.class);
+			IAppend appendStorage = getInterface(IAppend.class);
+			if (!traces.isEmpty()) {
+				CharSequence backup = null;
+				if (data != null) {
+					// same events as the batch: only the framing changes
+					backup = BatchEncoder.reframe(data,
+							settings.getTraceFormat(),
 							TrackerAssetSettings.TraceFormats.CSV);
-					if (appendStorage != null) {
-						appendStorage.Append(settings.getBackupFile(), rawData);
-					} else if (storage != null) {
-						String previous = storage
-								.exists(settings.getBackupFile())
-										? storage.load(settings.getBackupFile())
-										: "";
-						if (storage.exists(settings.getBackupFile()))
-							storage.save(settings.getBackupFile(),
-									previous + rawData);
-						else
-							storage.save(settings.getBackupFile(), rawData);
-					}
+				}
+				if (backup == null) {
+					backup = marshalTraces(traces,
+							TrackerAssetSettings.TraceFormats.CSV);
+				}
+				if (settings.getLogDirectory() != null) {
+					appendBackup(backup, traces);
+				} else if (appendStorage != null) {
+					appendStorage.Append(settings.getBackupFile(),
+							backup.toString());
+				} else if (storage != null) {
+					String rawData = backup.toString();
+					String previous = storage.exists(settings.getBackupFile())
+							? storage.load(settings.getBackupFile())
+							: "";
+					if (storage.exists(settings.getBackupFile()))
+						storage.save(settings.getBackupFile(),
+								previous + rawData);
+					else
+						storage.save(settings.getBackupFile(), rawData);
 				}
 			}
-			queue.dequeue(traces.size());
-		} else {
-			log(Severity.Information, "Nothing to flush");
 		}
+		return sent;
 	}
 
+	/**
+	 * Appends a backup batch to the backup in the log directory, syncing it
+	 * every backupSyncBatches batches with the BATCHES policy. It is written
+	 * to the file at the latest by {@link #syncBackup()}.
+	 */
+	private void appendBackup(CharSequence backup, List<TrackerEvent> traces) {
+		SegmentedLog writer = getBackupLog();
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.append(backup, traces.size(), traces);
+			if (settings.getBackupSync() == TrackerSettings.SyncPolicies.BATCHES
+					&& ++unsyncedBackups >= settings.getBackupSyncBatches()) {
+				writer.sync();
+				unsyncedBackups = 0;
+			}
+		} catch (IOException e) {
+			log(Severity.Error, "Error writing backup file %s: %s",
+					writer.getFile(), e);
+			closeLog(writer);
+			backupLog = null;
+		}
+	}
+
+	/**
+	 * Writes the backup batches of this flush to the file, and forces them
+	 * to disk with the FLUSH policy.
+	 */
+	private void syncBackup() {
+		if (backupLog == null) {
+			return;
+		}
+		try {
+			if (settings.getBackupSync() == TrackerSettings.SyncPolicies.FLUSH) {
+				backupLog.sync();
+				unsyncedBackups = 0;
+			} else {
+				backupLog.flush();
+			}
+		} catch (IOException e) {
+			log(Severity.Error, "Error writing backup file %s: %s",
+					backupLog.getFile(), e);
+			closeLog(backupLog);
+			backupLog = null;
+		}
+	}
+
+	/**
+	 * Reserves the next batch of (at most batchSize) traces. They must be
+	 * removed with {@link TraceQueue#commit()} once processed.
+	 */
 	List<TrackerEvent> collectTraces() {
 		Integer cnt = settings.getBatchSize() == 0 ? Integer.MAX_VALUE
 				: settings.getBatchSize();
 		cnt = Math.min(queue.getCount(), cnt);
-		List<TrackerEvent> traces = queue.peek(cnt);
+		List<TrackerEvent> traces = new ArrayList<>(cnt);
+		queue.drainTo(traces::add, cnt);
 		return traces;
 	}
 
 	String processTraces(List<TrackerEvent> traces,
 			TrackerAssetSettings.TraceFormats format) {
-		List<String> stringsToSend = new ArrayList<>();
-		for (TrackerEvent item : traces) {
-			stringsToSend.add(this.marshaller.marshal(item, this));
+		return marshalTraces(traces, format).toString();
+	}
+
+	/**
+	 * Marshals traces into this thread's marshalling buffer, which is valid
+	 * until the next call on the same thread.
+	 */
+	private StringBuilder marshalTraces(List<TrackerEvent> traces,
+			TrackerAssetSettings.TraceFormats format) {
+		StringBuilder data = marshalBuffer.get();
+		if (data.capacity() > MAX_POOLED_BUFFER) {
+			data = new StringBuilder();
+			marshalBuffer.set(data);
 		}
-		StringBuilder data = new StringBuilder(String.join(
-				"," + TrackerEventMarshaller.LINE_SEPARATOR, stringsToSend));
-		switch (format) {
-		case JSON:
-		case XAPI:
-			data.insert(0, "[" + TrackerEventMarshaller.LINE_SEPARATOR)
-					.append(TrackerEventMarshaller.LINE_SEPARATOR + "]");
-			break;
-		case CSV:
-		default:
-			data.append(TrackerEventMarshaller.LINE_SEPARATOR);
-			break;
+		data.setLength(0);
+		BatchEncoder encoder = new BatchEncoder(marshaller, format);
+		try {
+			encoder.open(data);
+			for (TrackerEvent trace : traces) {
+				encoder.append(trace, this);
+			}
+			encoder.close();
+		} catch (IOException e) {
+			// not thrown by StringBuilder
+			throw new UncheckedIOException(e);
 		}
-		return data.toString();
+		return data;
+	}
+
+	/**
+	 * @return an encoder of batches in the format sent to the collector.
+	 */
+	BatchEncoder newBatchEncoder() {
+		return new BatchEncoder(marshaller, settings.getTraceFormat());
 	}
 
 	boolean sendPendingTraces() {
@@ -735,40 +1637,117 @@ public class TrackerAsset extends BaseAsset {
 			log(Severity.Information,
 					"Enqueued trace-blocks detected: %s. Processing...",
 					tracesPending.size());
-			String data = tracesPending.get(0);
-			if (!sendTraces(data)) {
+			TraceBatch batch = tracesPending.get(0);
+			if (!sendTraces(batch.getData(), batch.getSize())) {
 				log(Severity.Information, "Error sending enqueued traces");
 				break;
 			} else {
 				// does not keep sending old traces, but continues processing
 				// new traces so that get added to tracesPending
 				tracesPending.remove(0);
+				walAck();
+				pendingTraces -= batch.getSize();
+				backlog.remove(batch.getSize(), batch.getBytes());
 				log(Severity.Information, "Sent enqueued traces OK");
 			}
 		}
-		return tracesPending.size() == 0;
+		return tracesPending.size() == 0 && sendSpilledTraces();
+	}
+
+	/**
+	 * Sends the traces spilled to disk, oldest first.
+	 */
+	private boolean sendSpilledTraces() {
+		if (spill == null) {
+			return true;
+		}
+		try {
+			while (!spill.isEmpty()) {
+				log(Severity.Information,
+						"Spilled trace-blocks detected: %s. Processing...",
+						spill.getBatchCount());
+				TraceBatch batch = spill.peek();
+				if (!sendTraces(batch.getData(), batch.getSize())) {
+					log(Severity.Information, "Error sending spilled traces");
+					return false;
+				}
+				spill.remove();
+			}
+			return true;
+		} catch (IOException e) {
+			log(Severity.Error, "Error reading spilled traces: %s", e);
+			return false;
+		}
 	}
 
 	boolean sendUnloggedTraces() {
 		if (unsentTraces.size() > 0 && actorObject != null) {
 			String data = processTraces(unsentTraces,
 					settings.getTraceFormat());
-			boolean sent = sendTraces(data);
+			walAppend(data, unsentTraces.size());
+			walClearUnsent();
+			// logged batches must be sent (acknowledged) in order
+			boolean sent = (wal == null || tracesPending.isEmpty())
+					&& sendTraces(data, unsentTraces.size(), unsentTraces);
+			if (!sent) {
+				addPending(data, unsentTraces);
+			} else {
+				walAck();
+				release(unsentTraces);
+			}
 			unsentTraces.clear();
-			if (!sent)
-				tracesPending.add(data);
 
 		}
 
 		return unsentTraces.size() == 0;
 	}
 
-	boolean sendTraces(String data) {
+	boolean sendTraces(CharSequence data, int traces) {
+		return sendTraces(data, traces, null);
+	}
+
+	/**
+	 * @param events
+	 *            the events in the batch, to index them in local logs; null if
+	 *            they are not known.
+	 */
+	boolean sendTraces(CharSequence data, int traces,
+			List<TrackerEvent> events) {
 		switch (settings.getStorageType()) {
 		case LOCAL:
 			IDataStorage storage = getInterface(IDataStorage.class);
 			IAppend append_storage = getInterface(IAppend.class);
-			if (storage != null) {
+			if (settings.getLogDirectory() != null) {
+				// only the new batch is written, whatever the format
+				SegmentedLog writer = getLocalLog();
+				if (writer == null) {
+					return false;
+				}
+				try {
+					writer.append(data, traces, events);
+					writer.flush();
+				} catch (IOException e) {
+					log(Severity.Error, "Error writing log file %s: %s",
+							writer.getFile(), e);
+					closeLog(writer);
+					localLog = null;
+					return false;
+				}
+			} else if (!BatchEncoder.isArray(settings.getTraceFormat())) {
+				// line-based formats: the batch is simply appended
+				if (append_storage != null) {
+					append_storage.Append(settings.getLogFile(),
+							data.toString());
+				} else if (storage != null) {
+					String previous = storage.exists(settings.getLogFile())
+							? storage.load(settings.getLogFile())
+							: "";
+					storage.save(settings.getLogFile(), previous + data);
+				}
+			} else if (storage != null) {
+				// bridges cannot rewrite the array's footer in place: set a
+				// log directory to avoid reloading the whole log
+				String text = data.toString();
 				String previous = storage.exists(settings.getLogFile())
 						? storage.load(settings.getLogFile())
 						: "";
@@ -776,23 +1755,16 @@ public class TrackerAsset extends BaseAsset {
 					previous = previous.replace(
 							TrackerEventMarshaller.LINE_SEPARATOR + "]",
 							"," + TrackerEventMarshaller.LINE_SEPARATOR);
-					data = data.replace(
+					text = text.replace(
 							"[" + TrackerEventMarshaller.LINE_SEPARATOR, "");
 				}
 
-				storage.save(settings.getLogFile(), previous + data);
+				storage.save(settings.getLogFile(), previous + text);
 			}
 
 			break;
 		case NET:
-			Map<String, String> headers = new HashMap<>();
-			headers.put("Content-Type", "application/json");
-			headers.put("Authorization",
-					String.format("%s", settings.getUserToken()));
-			log(Severity.Information,
-					TrackerEventMarshaller.LINE_SEPARATOR + data);
-			RequestResponse response = issueRequest(
-					"proxy/gleaner/collector/track", "POST", headers, data);
+			RequestResponse response = postTraces(data, traces);
 			if (response.GetResultAllowed()) {
 				log(Severity.Information, "Track= %s", response.body);
 				connected = true;
@@ -802,14 +1774,101 @@ public class TrackerAsset extends BaseAsset {
 				log(Severity.Warning,
 						"Error flushing, connection disabled temporarily");
 				connected = false;
+				if (flushResult != null) {
+					flushResult.addFailure();
+				}
 				return false;
 			}
 			break;
 
 		}
+		if (flushResult != null) {
+			flushResult.addSent(traces, utf8Length(data));
+		}
 		return true;
 	}
 
+	/**
+	 * Posts a batch to the collector. Only reads the settings and the bridge,
+	 * so that {@link TraceReplay} can call it from several threads while the
+	 * tracker flushes.
+	 * 
+	 * @return the collector's response.
+	 */
+	RequestResponse postTraces(CharSequence data, int traces) {
+		Map<String, String> headers = new HashMap<>();
+		boolean binary = settings
+				.getTraceFormat() == TrackerAssetSettings.TraceFormats.BINARY;
+		headers.put("Content-Type", getContentType());
+		headers.put("Authorization",
+				String.format("%s", settings.getUserToken()));
+		StreamingWebServiceRequest streaming = binary
+				? getInterface(StreamingWebServiceRequest.class)
+				: getCompressingBridge(data);
+		if (binary && streaming != null) {
+			// raw bytes: base64 is only needed by string-based bridges
+			byte[] bytes = Base64.getDecoder().decode(data.toString().trim());
+			log(Severity.Information, "Sending %s binary traces (%s bytes)",
+					traces, bytes.length);
+			return issueRequest("proxy/gleaner/collector/track", headers,
+					out -> out.write(bytes), streaming);
+		} else if (streaming != null) {
+			boolean gzip = settings
+					.getCompression() == TrackerAssetSettings.Compressions.GZIP;
+			headers.put("Content-Encoding", gzip ? "gzip" : "deflate");
+			log(Severity.Information, "Sending %s compressed traces", traces);
+			return issueRequest("proxy/gleaner/collector/track", headers,
+					out -> BatchCompressor.compress(data, gzip, out),
+					streaming);
+		} else {
+			if (binary) {
+				headers.put("Content-Transfer-Encoding", "base64");
+			}
+			log(Severity.Information,
+					TrackerEventMarshaller.LINE_SEPARATOR + data);
+			return issueRequest("proxy/gleaner/collector/track", "POST",
+					headers, data.toString());
+		}
+	}
+
+	/**
+	 * @return the content type of batches sent to the collector.
+	 */
+	private String getContentType() {
+		switch (settings.getTraceFormat()) {
+		case BINARY:
+			return "application/octet-stream";
+		case NDJSON:
+			return "application/x-ndjson";
+		default:
+			return "application/json";
+		}
+	}
+
+	/**
+	 * @return the bridge to send {@code data} compressed with, or null to
+	 *         send it as it is.
+	 */
+	private StreamingWebServiceRequest getCompressingBridge(
+			CharSequence data) {
+		int threshold = settings.getCompressionThreshold();
+		// a batch has at least as many bytes as chars: only short ones need
+		// to be measured
+		if (settings.getCompression() == TrackerAssetSettings.Compressions.NONE
+				|| data.length() < threshold
+						&& utf8Length(data) < threshold) {
+			return null;
+		}
+		StreamingWebServiceRequest streaming = getInterface(
+				StreamingWebServiceRequest.class);
+		if (streaming == null && !compressionUnsupported) {
+			log(Severity.Warning,
+					"Compression needs a bridge implementing StreamingWebServiceRequest; sending uncompressed traces");
+			compressionUnsupported = true;
+		}
+		return streaming;
+	}
+
 	/**
 	 * Sets if the following trace has been a success, including this value to
 	 * the extensions.
@@ -954,6 +2013,29 @@ public class TrackerAsset extends BaseAsset {
 		return actorObject;
 	}
 
+	/**
+	 * @return traces dropped because the trace backlog was full.
+	 */
+	public long getDroppedTraces() {
+		return backlog.getDropped();
+	}
+
+	/**
+	 * @return traces kept in memory (queued, pending or unsent); only
+	 *         accounted for if the backlog is bounded.
+	 */
+	public int getBufferedTraces() {
+		return backlog.getEvents();
+	}
+
+	/**
+	 * @return estimated bytes kept in memory; only accounted for if the
+	 *         backlog is bounded.
+	 */
+	public long getBufferedBytes() {
+		return backlog.getBytes();
+	}
+
 	// sub-tracker access
 
 	public AccessibleTracker getAccessible() {
@@ -15,8 +15,20 @@
  */
 package es.eucm.tracker;
 
+import java.io.IOException;
+
 interface TrackerEventMarshaller {
 	public static final String LINE_SEPARATOR = "\r\n";
 
 	public String marshal(TrackerEvent event, TrackerAsset tracker);
+
+	/**
+	 * Writes the marshalled event to {@code out}, e.g. a batch being built or
+	 * a UTF-8 {@link java.io.OutputStreamWriter}. By default, appends
+	 * {@link #marshal(TrackerEvent, TrackerAsset)}.
+	 */
+	public default void marshal(TrackerEvent event, TrackerAsset tracker,
+			Appendable out) throws IOException {
+		out.append(marshal(event, tracker));
+	}
 }
@@ -0,0 +1,174 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.rageproject.asset.manager.IBridge;
+
+/**
+ * Creates independent tracker sessions (e.g. one per player, in a game
+ * server) that share a bridge and a pool of flushing threads.
+ *
+ * Each session has its own settings (and thus actor, auth token and tracking
+ * code), queue and extensions, but no threads of its own: asynchronous and
+ * background flushes of every session run on the shared pool.
+ *
+ * Validation problems of traces are not reported per session, but through the
+ * global logger of {@link TrackerUtils#setLogger(TrackerUtils.Logger)}.
+ */
+public class TrackerSessionFactory {
+
+	/** Preallocated queue slots per session; bursts spill to a list */
+	static final int SESSION_QUEUE_CAPACITY = 16;
+
+	/** Period (ms) of the check for sessions due a background flush */
+	private static final long SWEEP_PERIOD = 100;
+
+	private final IBridge bridge;
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	private final Set<SessionTrigger> triggers = ConcurrentHashMap
+			.newKeySet();
+
+	/**
+	 * Creates a factory with a thread per available processor.
+	 * 
+	 * @param bridge
+	 *            shared by all the sessions.
+	 */
+	public TrackerSessionFactory(IBridge bridge) {
+		this(bridge, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param bridge
+	 *            shared by all the sessions.
+	 * @param threads
+	 *            flushing threads, shared by all the sessions.
+	 */
+	public TrackerSessionFactory(IBridge bridge, int threads) {
+		this.bridge = bridge;
+		AtomicInteger count = new AtomicInteger();
+		this.executor = new ScheduledThreadPoolExecutor(Math.max(1, threads),
+				r -> {
+					Thread t = new Thread(r,
+							"tracker-session-flush-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		executor.scheduleWithFixedDelay(this::sweep, SWEEP_PERIOD,
+				SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates a new session; it must be started as a standalone tracker.
+	 * 
+	 * @param settings
+	 *            settings of the session, not to be shared with others.
+	 */
+	public TrackerAsset newSession(TrackerAssetSettings settings) {
+		TrackerAsset session = new TrackerAsset(this, settings);
+		session.setBridge(bridge);
+		session.setFlushExecutor(executor);
+		return session;
+	}
+
+	/**
+	 * Stops the shared threads; traces not flushed by then are not sent.
+	 * Sessions should be exited first.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @return number of started sessions with background flushing.
+	 */
+	int getBackgroundSessions() {
+		return triggers.size();
+	}
+
+	FlushTrigger newTrigger(Runnable flush, long maxLatencyMillis) {
+		SessionTrigger trigger = new SessionTrigger(flush, maxLatencyMillis);
+		triggers.add(trigger);
+		return trigger;
+	}
+
+	private void sweep() {
+		long now = System.nanoTime();
+		for (SessionTrigger trigger : triggers) {
+			if (now - trigger.lastFlush >= trigger.maxLatencyNanos) {
+				trigger.request();
+			}
+		}
+	}
+
+	/**
+	 * Background flushes of a session, run on the shared pool: at most one
+	 * flush is queued at a time.
+	 */
+	private class SessionTrigger implements FlushTrigger, Runnable {
+
+		private final Runnable flush;
+
+		private final long maxLatencyNanos;
+
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		private volatile long lastFlush = System.nanoTime();
+
+		SessionTrigger(Runnable flush, long maxLatencyMillis) {
+			this.flush = flush;
+			this.maxLatencyNanos = TimeUnit.MILLISECONDS
+					.toNanos(Math.max(1, maxLatencyMillis));
+		}
+
+		@Override
+		public void request() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					// shut down
+					scheduled.set(false);
+				}
+			}
+		}
+
+		@Override
+		public void stop() {
+			triggers.remove(this);
+		}
+
+		@Override
+		public void run() {
+			try {
+				flush.run();
+			} finally {
+				lastFlush = System.nanoTime();
+				scheduled.set(false);
+			}
+		}
+	}
+}
@@ -41,7 +41,52 @@ public class TrackerSettings {
 		 */
 		XAPI,
 		/** csv-formatted traces */
-		CSV
+		CSV,
+		/** xAPI statements, one per line (JSON Lines); logs are appended */
+		NDJSON,
+		/**
+		 * compact binary batches, stored as base64 lines, a third larger than
+		 * the raw bytes (see BinaryTrackerEventUnmarshaller)
+		 */
+		BINARY
+	}
+
+	/**
+	 * What to do with new traces when the trace backlog is full
+	 */
+	public enum QueueFullPolicies {
+		/** wait (up to queueFullTimeout) for a flush to make room */
+		BLOCK,
+		/** drop the new trace */
+		DROP_NEWEST,
+		/** drop the oldest buffered traces to make room */
+		DROP_OLDEST,
+		/** keep one out of queueFullSampleRate new traces, as DROP_OLDEST */
+		SAMPLE
+	}
+
+	/**
+	 * Content-encoding of the batches sent to the collector
+	 */
+	public enum Compressions {
+		/** send batches as they are */
+		NONE,
+		/** gzip-compressed batches */
+		GZIP,
+		/** zlib-compressed batches ("deflate" content-encoding) */
+		DEFLATE
+	}
+
+	/**
+	 * When backups written to the log directory are forced to disk
+	 */
+	public enum SyncPolicies {
+		/** leave it to the operating system */
+		NEVER,
+		/** every backupSyncBatches batches */
+		BATCHES,
+		/** at the end of every flush */
+		FLUSH
 	}
 
 	// settings with defaults
@@ -61,6 +106,46 @@ public class TrackerSettings {
 	private TraceFormats traceFormat = TraceFormats.JSON;
 	/** use a backup storage or not */
 	private boolean backupStorage = true;
+	/** flush from a background thread instead of the caller's thread */
+	private boolean backgroundFlush = false;
+	/** max time (ms) between background flushes */
+	private long maxFlushLatency = 5000;
+	/** max traces kept in memory (queued, pending or unsent); 0 = unbounded */
+	private int maxQueuedTraces = 0;
+	/** max estimated bytes kept in memory; 0 = unbounded */
+	private long maxQueuedBytes = 0;
+	/** what to do with new traces when the limits above are reached */
+	private QueueFullPolicies queueFullPolicy = QueueFullPolicies.DROP_OLDEST;
+	/** max time (ms) a trace waits for room with the BLOCK policy */
+	private long queueFullTimeout = 100;
+	/** with the SAMPLE policy, one out of this many traces is kept */
+	private int queueFullSampleRate = 10;
+	/** directory to spill pending traces to; null keeps them in memory */
+	private String spillDirectory;
+	/** pending traces kept in memory before spilling the rest to disk */
+	private int spillWatermark = 0;
+	/** one trace buffer per producer thread, merged by timestamp on flush */
+	private boolean stripedQueue = false;
+	/** run asynchronous flushes on virtual threads, if available (Java 21+) */
+	private boolean virtualThreads = false;
+	/** compress batches sent to the collector; needs a streaming bridge */
+	private Compressions compression = Compressions.NONE;
+	/** batches smaller than this (in UTF-8 bytes) are sent uncompressed */
+	private int compressionThreshold = 1024;
+	/** directory where LOCAL traces and backups are appended, not the bridge */
+	private String logDirectory;
+	/** when backups in the log directory are forced (fsync) to disk */
+	private SyncPolicies backupSync = SyncPolicies.NEVER;
+	/** with the BATCHES sync policy, batches written between two syncs */
+	private int backupSyncBatches = 10;
+	/** bytes after which a log segment is sealed; 0 = a single log file */
+	private long logSegmentSize = 0;
+	/** ms after which a log segment is sealed; 0 = no limit */
+	private long logSegmentAge = 0;
+	/** directory of the write-ahead log of unsent batches; null = none */
+	private String walDirectory;
+	/** compress sealed log segments in the background */
+	private boolean compactLogs = false;
 
 	// settings with defaults set in constructor
 	/** file for logs */
@@ -154,6 +239,166 @@ public class TrackerSettings {
 		this.backupStorage = backupStorage;
 	}
 
+	public boolean isBackgroundFlush() {
+		return backgroundFlush;
+	}
+
+	public void setBackgroundFlush(boolean backgroundFlush) {
+		this.backgroundFlush = backgroundFlush;
+	}
+
+	public long getMaxFlushLatency() {
+		return maxFlushLatency;
+	}
+
+	public void setMaxFlushLatency(long maxFlushLatency) {
+		this.maxFlushLatency = maxFlushLatency;
+	}
+
+	public int getMaxQueuedTraces() {
+		return maxQueuedTraces;
+	}
+
+	public void setMaxQueuedTraces(int maxQueuedTraces) {
+		this.maxQueuedTraces = maxQueuedTraces;
+	}
+
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	public void setMaxQueuedBytes(long maxQueuedBytes) {
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	public QueueFullPolicies getQueueFullPolicy() {
+		return queueFullPolicy;
+	}
+
+	public void setQueueFullPolicy(QueueFullPolicies queueFullPolicy) {
+		this.queueFullPolicy = queueFullPolicy;
+	}
+
+	public long getQueueFullTimeout() {
+		return queueFullTimeout;
+	}
+
+	public void setQueueFullTimeout(long queueFullTimeout) {
+		this.queueFullTimeout = queueFullTimeout;
+	}
+
+	public int getQueueFullSampleRate() {
+		return queueFullSampleRate;
+	}
+
+	public void setQueueFullSampleRate(int queueFullSampleRate) {
+		this.queueFullSampleRate = queueFullSampleRate;
+	}
+
+	public String getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	public void setSpillDirectory(String spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public int getSpillWatermark() {
+		return spillWatermark;
+	}
+
+	public void setSpillWatermark(int spillWatermark) {
+		this.spillWatermark = spillWatermark;
+	}
+
+	public boolean isStripedQueue() {
+		return stripedQueue;
+	}
+
+	public void setStripedQueue(boolean stripedQueue) {
+		this.stripedQueue = stripedQueue;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	public Compressions getCompression() {
+		return compression;
+	}
+
+	public void setCompression(Compressions compression) {
+		this.compression = compression;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public String getLogDirectory() {
+		return logDirectory;
+	}
+
+	public void setLogDirectory(String logDirectory) {
+		this.logDirectory = logDirectory;
+	}
+
+	public SyncPolicies getBackupSync() {
+		return backupSync;
+	}
+
+	public void setBackupSync(SyncPolicies backupSync) {
+		this.backupSync = backupSync;
+	}
+
+	public int getBackupSyncBatches() {
+		return backupSyncBatches;
+	}
+
+	public void setBackupSyncBatches(int backupSyncBatches) {
+		this.backupSyncBatches = backupSyncBatches;
+	}
+
+	public long getLogSegmentSize() {
+		return logSegmentSize;
+	}
+
+	public void setLogSegmentSize(long logSegmentSize) {
+		this.logSegmentSize = logSegmentSize;
+	}
+
+	public long getLogSegmentAge() {
+		return logSegmentAge;
+	}
+
+	public void setLogSegmentAge(long logSegmentAge) {
+		this.logSegmentAge = logSegmentAge;
+	}
+
+	public String getWalDirectory() {
+		return walDirectory;
+	}
+
+	public void setWalDirectory(String walDirectory) {
+		this.walDirectory = walDirectory;
+	}
+
+	public boolean isCompactLogs() {
+		return compactLogs;
+	}
+
+	public void setCompactLogs(boolean compactLogs) {
+		this.compactLogs = compactLogs;
+	}
+
 	public String getLogFile() {
 		return logFile;
 	}
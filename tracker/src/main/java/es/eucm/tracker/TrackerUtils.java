@@ -24,6 +24,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Static utilities, mostly for validation.
@@ -129,19 +131,32 @@ public class TrackerUtils {
 						.getConstructor(String.class, Throwable.class)
 						.newInstance(strictMessage, cause);
 			} catch (Exception e) {
-				logger.log(Severity.Error,
+				log(Severity.Error,
 						"Exception reporting exception: missing constructors for "
 								+ exceptionClass.getCanonicalName() + ": " + e);
 				throw new TrackerException(strictMessage, cause);
 			}
 			throw complaint;
 		} else {
-			logger.log(Severity.Warning, message);
+			log(Severity.Warning, message);
 		}
 	}
 
 	/**
-	 * Parses a trace line into a list
+	 * Logs through the configured logger, or to the standard error if there
+	 * is none (e.g. only sessions of a {@link TrackerSessionFactory}).
+	 */
+	private static void log(Severity severity, String message) {
+		Logger current = logger;
+		if (current != null) {
+			current.log(severity, message);
+		} else {
+			System.err.println(severity + ": " + message);
+		}
+	}
+
+	/**
+	 * Parses a trace line into a list, unescaping commas ({@code \,})
 	 * 
 	 * @param trace
 	 *            to parse
@@ -150,25 +165,10 @@ public class TrackerUtils {
 	 */
 	public static List<String> parseCSV(String trace) {
 		List<String> p = new ArrayList<>();
-		boolean escape = false;
-		int start = 0; // start of current field
-		int length = trace.length();
-		for (int i = 0; i < length; i++) {
-			char c = trace.charAt(i);
-			if (c == '\\') {
-				escape = true;
-			} else if (c == ',') {
-				if (!escape) {
-					// flush recently-ended field into list
-					p.add(trace.substring(start, i).replace("\\,", ","));
-					start = i + 1;
-				} else {
-					escape = false;
-				}
-			}
+		CsvTokenizer fields = new CsvTokenizer().reset(trace);
+		while (fields.next()) {
+			p.add(fields.string());
 		}
-		// flush last segment of field
-		p.add(trace.substring(start).replace("\\,", ","));
 		return p;
 	}
 
@@ -282,4 +282,43 @@ public class TrackerUtils {
 	public static boolean isNullOrEmpty(String string) {
 		return string == null || string.isEmpty();
 	}
+
+	/**
+	 * @param s
+	 *            to measure
+	 * @return length of the string once encoded as UTF-8, without encoding it
+	 */
+	public static long utf8Length(CharSequence s) {
+		long length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread. Virtual
+	 * threads need Java 21+, so the executor is looked up by reflection.
+	 * 
+	 * @return the executor, or null if virtual threads are not available.
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
 }
@@ -0,0 +1,90 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link es.eucm.tracker.ConcurrentQueue}
+ */
+public class ConcurrentQueueTest {
+
+	@Test
+	public void testFifoThroughOverflow() throws Exception {
+		ConcurrentQueue<Integer> queue = new ConcurrentQueue<>(4);
+		for (int i = 0; i < 10; i++) {
+			queue.enqueue(i);
+		}
+		assertEquals(10, queue.getCount());
+
+		List<Integer> peeked = queue.peek(10);
+		assertEquals(10, peeked.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, (int) peeked.get(i));
+		}
+
+		for (int i = 0; i < 6; i++) {
+			assertEquals(i, (int) queue.dequeue());
+		}
+		// ring is usable again once the overflow has been drained
+		queue.enqueue(10);
+		for (int i = 6; i <= 10; i++) {
+			assertEquals(i, (int) queue.dequeue());
+		}
+		assertEquals(0, queue.getCount());
+	}
+
+	@Test
+	public void testConcurrentProducers() throws Exception {
+		final int producers = 4;
+		final int perProducer = 10000;
+		final ConcurrentQueue<int[]> queue = new ConcurrentQueue<>(16);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int id = p;
+			threads[p] = new Thread(() -> {
+				for (int i = 0; i < perProducer; i++) {
+					queue.enqueue(new int[] { id, i });
+				}
+			});
+			threads[p].start();
+		}
+
+		int[] last = new int[producers];
+		Arrays.fill(last, -1);
+		int consumed = 0;
+		while (consumed < producers * perProducer) {
+			if (queue.getCount() == 0) {
+				Thread.yield();
+				continue;
+			}
+			int[] e = queue.dequeue();
+			// per-producer order must be kept
+			assertEquals(last[e[0]] + 1, e[1]);
+			last[e[0]] = e[1];
+			consumed++;
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(0, queue.getCount());
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eu.rageproject.asset.manager.IWebServiceRequest;
+import eu.rageproject.asset.manager.RequestResponse;
+import eu.rageproject.asset.manager.RequestSettings;
+
+/**
+ * Compares the latency per batch of {@link HttpWebServiceRequest} with a
+ * connection per request (as in the swing example's bridge), against a local
+ * stand-in collector. Not a unit test: run its main method.
+ */
+public class HttpWebServiceRequestBenchmark {
+
+	private static final int WARMUP = 200;
+
+	private static final int BATCHES = 2000;
+
+	public static void main(String[] args) throws Exception {
+		// otherwise Nagle + delayed ACKs add ~40 ms to every response
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer
+				.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/api/proxy/gleaner/collector/track",
+				exchange -> {
+					HttpWebServiceRequestTest
+							.readAll(exchange.getRequestBody());
+					HttpWebServiceRequestTest.respond(exchange, 200,
+							"{\"message\":\"Success.\"}".getBytes("UTF-8"));
+				});
+		server.start();
+		try {
+			RequestSettings request = new RequestSettings();
+			request.method = "POST";
+			request.uri = new URI("http://localhost:"
+					+ server.getAddress().getPort()
+					+ "/api/proxy/gleaner/collector/track");
+			request.requestHeaders.put("Content-Type", "application/json");
+
+			IWebServiceRequest perRequest = HttpWebServiceRequestBenchmark::connectionPerRequest;
+			IWebServiceRequest pooled = new HttpWebServiceRequest();
+			for (int traces : new int[] { 2, 20, 500 }) {
+				request.body = batch(traces);
+				run(perRequest, request, WARMUP);
+				run(pooled, request, WARMUP);
+				System.out.printf("%d traces/batch (%d bytes)%n", traces,
+						request.body.length());
+				System.out.printf("  connection per request: %.1f us/batch%n",
+						run(perRequest, request, BATCHES));
+				System.out.printf("  keep-alive:             %.1f us/batch%n",
+						run(pooled, request, BATCHES));
+			}
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	private static double run(IWebServiceRequest http,
+			RequestSettings request, int batches) {
+		long start = System.nanoTime();
+		for (int i = 0; i < batches; i++) {
+			if (http.WebServiceRequest(request).responseCode != 200) {
+				throw new IllegalStateException("request failed");
+			}
+		}
+		return (System.nanoTime() - start) / 1000.0 / batches;
+	}
+
+	private static String batch(int traces) {
+		StringBuilder sb = new StringBuilder("[\r\n");
+		for (int i = 0; i < traces; i++) {
+			sb.append(i == 0 ? "" : ",\r\n").append(
+					"{\"actor\":{\"account\":{\"homePage\":\"http://a2:3000/\",\"name\":\"Anonymous\"},\"name\":\"test-animal-name\"},"
+							+ "\"verb\":{\"id\":\"https://w3id.org/xapi/seriousgames/verbs/accessed\"},"
+							+ "\"object\":{\"definition\":{\"type\":\"https://w3id.org/xapi/seriousgames/activity-types/game-object\"},"
+							+ "\"id\":\"http://a2:3000/api/proxy/gleaner/games/5a26cb5ac8b102008b41472a/5a26cb5ac8b102008b41472b/ObjectID\"},"
+							+ "\"timestamp\":\"2019-01-01T00:00:00.000Z\"}");
+		}
+		return sb.append("\r\n]").toString();
+	}
+
+	/**
+	 * A new connection per request, disconnected once done.
+	 */
+	private static RequestResponse connectionPerRequest(
+			RequestSettings settings) {
+		RequestResponse response = new RequestResponse(settings);
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) settings.uri.toURL()
+					.openConnection();
+			connection.setRequestMethod(settings.method);
+			for (Map.Entry<String, String> header : settings.requestHeaders
+					.entrySet()) {
+				connection.setRequestProperty(header.getKey(),
+						header.getValue());
+			}
+			connection.setDoOutput(true);
+			OutputStreamWriter wr = new OutputStreamWriter(
+					connection.getOutputStream());
+			wr.write(settings.body);
+			wr.close();
+			BufferedReader rd = new BufferedReader(
+					new InputStreamReader(connection.getInputStream()));
+			StringBuilder sb = new StringBuilder();
+			String line;
+			while ((line = rd.readLine()) != null) {
+				sb.append(line).append('\r');
+			}
+			rd.close();
+			response.responseCode = connection.getResponseCode();
+			response.body = sb.toString();
+		} catch (Exception e) {
+			response.responseCode = -1;
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+		return response;
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright © 2019-20 e-UCM (http://www.e-ucm.es/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.eucm.tracker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import eu.rageproject.asset.manager.RequestResponse;
+import eu.rageproject.asset.manager.RequestSettings;
+
+/**
+ * Tests the {@link es.eucm.tracker.HttpWebServiceRequest} against a local
+ * server.
+ */
+public class HttpWebServiceRequestTest {
+
+	private HttpServer server;
+
+	private final Set<Integer> clientPorts = new HashSet<>();
+
+	@Before
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		// echoes the request body
+		server.createContext("/echo", exchange -> {
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			respond(exchange, 200, readAll(exchange.getRequestBody()));
+		});
+		// decompresses and echoes the request body
+		server.createContext("/inflate", exchange -> {
+			String encoding = exchange.getRequestHeaders()
+					.getFirst("Content-Encoding");
+			InputStream in = "gzip".equals(encoding)
+					? new GZIPInputStream(exchange.getRequestBody())
+					: new InflaterInputStream(exchange.getRequestBody());
+			respond(exchange, 200, readAll(in));
+		});
+		server.createContext("/large", exchange -> {
+			byte[] body = new byte[100000];
+			Arrays.fill(body, (byte) 'a');
+			respond(exchange, 200, body);
+		});
+		server.createContext("/error", exchange -> respond(exchange, 500,
+				"{\"message\":\"boom\"}".getBytes("UTF-8")));
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testPostReusesConnection() throws Exception {
+		HttpWebServiceRequest http = new HttpWebServiceRequest();
+		for (int i = 0; i < 5; i++) {
+			String body = "[{\"name\":\"ñandú " + i + "\"}]";
+			RequestResponse response = http
+					.WebServiceRequest(request("/echo", "POST", body));
+			assertEquals(200, response.responseCode);
+			assertEquals(body, response.body);
+		}
+		assertEquals(1, clientPorts.size());
+	}
+
+	@Test
+	public void testCompressedBody() throws Exception {
+		HttpWebServiceRequest http = new HttpWebServiceRequest();
+		http.setMaxResponseSize(1 << 20);
+		StringBuilder body = new StringBuilder("[");
+		for (int i = 0; i < 5000; i++) {
+			body.append(i > 0 ? "," : "").append("{\"name\":\"ñandú ")
+					.append(i).append("\"}");
+		}
+		body.append(']');
+		for (String encoding : new String[] { "gzip", "deflate" }) {
+			RequestSettings settings = request("/inflate", "POST", null);
+			settings.requestHeaders.put("Content-Encoding", encoding);
+			RequestResponse response = http.WebServiceRequest(settings,
+					out -> BatchCompressor.compress(body,
+							"gzip".equals(encoding), out));
+			assertEquals(200, response.responseCode);
+			assertEquals(body.toString(), response.body);
+		}
+	}
+
+	@Test
+	public void testResponseSizeCap() throws Exception {
+		HttpWebServiceRequest http = new HttpWebServiceRequest();
+		http.setMaxResponseSize(1000);
+		RequestResponse response = http
+				.WebServiceRequest(request("/large", "GET", ""));
+		assertEquals(200, response.responseCode);
+		assertEquals(1000, response.body.length());
+	}
+
+	@Test
+	public void testErrorResponse() throws Exception {
+		HttpWebServiceRequest http = new HttpWebServiceRequest();
+		RequestResponse response = http
+				.WebServiceRequest(request("/error", "POST", "[]"));
+		assertEquals(500, response.responseCode);
+		assertEquals("{\"message\":\"boom\"}", response.responsMessage);
+		assertFalse(response.GetResultAllowed());
+	}
+
+	private RequestSettings request(String path, String method, String body)
+			throws Exception {
+		RequestSettings settings = new RequestSettings();
+		settings.method = method;
+		settings.uri = new URI("http://localhost:"
+				+ server.getAddress().getPort() + path);
+		settings.requestHeaders.put("Content-Type", "application/json");
+		settings.body = body;
+		return settings;
+	}
+
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	static void respond(HttpExchange exchange, int code, byte[] body)
+			throws IOException {
+		exchange.sendResponseHeaders(code, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
@@ -16,23 +16,45 @@
 package es.eucm.tracker;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
+import org.junit.After;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.google.gson.Gson;
 
@@ -40,6 +62,7 @@ import es.eucm.tracker.exceptions.KeyExtensionException;
 import es.eucm.tracker.exceptions.TargetXApiException;
 import es.eucm.tracker.exceptions.TraceException;
 import es.eucm.tracker.exceptions.TrackerException;
+import es.eucm.tracker.exceptions.UnmarshallingException;
 import es.eucm.tracker.exceptions.ValueExtensionException;
 import es.eucm.tracker.exceptions.VerbXApiException;
 import eu.rageproject.asset.manager.AssetManager;
@@ -47,6 +70,8 @@ import eu.rageproject.asset.manager.IAppend;
 import eu.rageproject.asset.manager.IBridge;
 import eu.rageproject.asset.manager.IDataStorage;
 import eu.rageproject.asset.manager.ILog;
+import eu.rageproject.asset.manager.RequestResponse;
+import eu.rageproject.asset.manager.RequestSettings;
 
 /**
  * Tests the {@link es.eucm.tracker.TrackerAsset}
@@ -64,6 +89,20 @@ public class TrackerAssetTest {
 	ILog log;
 	TesterBridge bridge;
 
+	/** Log, spill and write-ahead log directories */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Stops the tracker, closing its files, and takes it back to the default
+	 * settings.
+	 */
+	@After
+	public void restoreSettings() {
+		TrackerAsset.getInstance().stop();
+		TrackerAsset.getInstance().setSettings(new TrackerAssetSettings());
+	}
+
 	private void initTracker(String format) throws Exception {
 		initTracker(format, TrackerAssetSettings.StorageTypes.LOCAL, null);
 	}
@@ -991,6 +1030,1152 @@ public class TrackerAssetTest {
 		assertEquals(((ArrayList) file.get(1)).size(), 2);
 	}
 
+	@Test
+	public void testTraceSending_Batches() throws Exception {
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		enqueueTrace01();
+		enqueueTrace02();
+		enqueueTrace03();
+		enqueueTrace01();
+		enqueueTrace02();
+		// batchSize is 2: a single flush sends the queue in 3 requests
+		TrackerAsset.getInstance().flush();
+		String text = storage.load("netstorage");
+		text = text.replace("][", "],[");
+		text = "[" + text + "]";
+		ArrayList file = gson.fromJson(text, arraymap.getClass());
+		assertEquals(3, file.size());
+		assertEquals(2, ((ArrayList) file.get(0)).size());
+		assertEquals(2, ((ArrayList) file.get(1)).size());
+		assertEquals(1, ((ArrayList) file.get(2)).size());
+	}
+
+	@Test
+	public void testTraceSending_DropNewest() throws Exception {
+		settings.setMaxQueuedTraces(3);
+		settings.setQueueFullPolicy(
+				TrackerAssetSettings.QueueFullPolicies.DROP_NEWEST);
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		long dropped = TrackerAsset.getInstance().getDroppedTraces();
+		enqueueTrace01();
+		enqueueTrace02();
+		enqueueTrace03();
+		enqueueTrace02();
+		enqueueTrace01();
+		assertEquals(dropped + 2, TrackerAsset.getInstance().getDroppedTraces());
+		assertEquals(3, TrackerAsset.getInstance().getBufferedTraces());
+		TrackerAsset.getInstance().flush();
+		assertEquals(0, TrackerAsset.getInstance().getBufferedTraces());
+
+		String text = storage.load("netstorage");
+		text = "[" + text.replace("][", "],[") + "]";
+		ArrayList file = gson.fromJson(text, arraymap.getClass());
+		assertEquals(2, file.size());
+		// the first 3 traces are kept
+		Map last = (Map) ((ArrayList) file.get(1)).get(0);
+		assertEquals("https://w3id.org/xapi/adb/verbs/selected",
+				((Map) last.get("verb")).get("id"));
+	}
+
+	@Test
+	public void testTraceSending_DropOldest() throws Exception {
+		settings.setMaxQueuedTraces(3);
+		settings.setQueueFullPolicy(
+				TrackerAssetSettings.QueueFullPolicies.DROP_OLDEST);
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		long dropped = TrackerAsset.getInstance().getDroppedTraces();
+		bridge.setConnected(false);
+		enqueueTrace01();
+		enqueueTrace02();
+		enqueueTrace03();
+		// offline: the traces are kept pending, and still count
+		TrackerAsset.getInstance().flush();
+		assertEquals(3, TrackerAsset.getInstance().getBufferedTraces());
+		// makes room by dropping the oldest pending batch (2 traces)
+		enqueueTrace02();
+		assertEquals(dropped + 2, TrackerAsset.getInstance().getDroppedTraces());
+		assertEquals(2, TrackerAsset.getInstance().getBufferedTraces());
+
+		bridge.setConnected(true);
+		TrackerAsset.getInstance().flush();
+		assertEquals(0, TrackerAsset.getInstance().getBufferedTraces());
+		String text = storage.load("netstorage");
+		text = "[" + text.replace("][", "],[") + "]";
+		ArrayList file = gson.fromJson(text, arraymap.getClass());
+		assertEquals(2, file.size());
+		assertEquals(1, ((ArrayList) file.get(0)).size());
+		assertEquals(1, ((ArrayList) file.get(1)).size());
+	}
+
+	@Test
+	public void testTraceSending_DropOldest_WriteAheadLog() throws Exception {
+		File dir = folder.newFolder("tracker-wal");
+		settings.setWalDirectory(dir.getPath());
+		settings.setMaxQueuedTraces(3);
+		settings.setQueueFullPolicy(
+				TrackerAssetSettings.QueueFullPolicies.DROP_OLDEST);
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		bridge.setConnected(false);
+		enqueueTrace01();
+		enqueueTrace02();
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+
+		// dropping the oldest pending batch (2 traces) leaves the log alone
+		byte[] logged = readFiles(dir);
+		enqueueTrace02();
+		assertTrue(Arrays.equals(logged, readFiles(dir)));
+
+		// the next flush acknowledges it, so it is not replayed on start
+		TrackerAsset.getInstance().flush();
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+		String text = storage.load("netstorage");
+		text = "[" + text.replace("][", "],[") + "]";
+		ArrayList file = gson.fromJson(text, arraymap.getClass());
+		assertEquals(2, file.size());
+		assertEquals(1, ((ArrayList) file.get(0)).size());
+		assertEquals(1, ((ArrayList) file.get(1)).size());
+	}
+
+	@Test
+	public void testTraceSending_WriteAheadLog_Unsent() throws Exception {
+		File dir = folder.newFolder("tracker-wal");
+		settings.setWalDirectory(dir.getPath());
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		// without logging in there is no actor to marshal the traces with
+		TrackerAsset.getInstance().stop();
+		bridge.setConnected(false);
+		TrackerAsset.getInstance().start();
+		enqueueTrace01();
+		enqueueTrace02();
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+
+		// unsent traces are recovered by a new tracker, as if the app had
+		// been killed, and sent once it logs in
+		bridge.setConnected(true);
+		TrackerAsset recovered = new TrackerAsset();
+		recovered.setSettings(settings);
+		recovered.setBridge(bridge);
+		recovered.start();
+		recovered.flush();
+		recovered.stop();
+		ArrayList file = gson.fromJson(storage.load("netstorage"),
+				ArrayList.class);
+		assertEquals(2, file.size());
+
+		// and are not recovered again once logged as a batch
+		storage.delete("netstorage");
+		recovered = new TrackerAsset();
+		recovered.setSettings(settings);
+		recovered.setBridge(bridge);
+		recovered.start();
+		recovered.flush();
+		recovered.stop();
+		assertEquals("", storage.load("netstorage"));
+
+		// the stopped tracker still holds them in memory: send them too
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		TrackerAsset.getInstance().flush();
+	}
+
+	private static byte[] readFiles(File dir) throws IOException {
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		for (File file : files) {
+			all.write(file.isDirectory() ? readFiles(file)
+					: Files.readAllBytes(file.toPath()));
+		}
+		return all.toByteArray();
+	}
+
+	@Test
+	public void testTraceSending_Spill() throws Exception {
+		File dir = folder.newFolder("tracker-spill");
+		settings.setSpillDirectory(dir.getPath());
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		bridge.setConnected(false);
+		enqueueTrace01();
+		enqueueTrace02();
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+		assertEquals(1, dir.list().length);
+
+		// pending traces in memory would be lost here, spilled ones are
+		// recovered on start
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		bridge.setConnected(true);
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+
+		String text = storage.load("netstorage");
+		text = "[" + text.replace("][", "],[") + "]";
+		ArrayList file = gson.fromJson(text, arraymap.getClass());
+		assertEquals(2, file.size());
+		assertEquals(2, ((ArrayList) file.get(0)).size());
+		assertEquals(1, ((ArrayList) file.get(1)).size());
+	}
+
+	@Test
+	public void testTraceSending_Striped() throws Exception {
+		settings.setStripedQueue(true);
+		settings.setBatchSize(0);
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final String id = "Thread" + t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 50; i++) {
+					TrackerAsset.getInstance().trace("accessed", "gameobject",
+							id);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+
+		// a single batch, merged by timestamp
+		ArrayList file = gson.fromJson(storage.load("netstorage"),
+				arraymap.getClass());
+		assertEquals(200, file.size());
+		Instant previous = Instant.MIN;
+		for (Object trace : file) {
+			Instant timestamp = Instant
+					.parse((String) ((Map) trace).get("timestamp"));
+			assertTrue(!timestamp.isBefore(previous));
+			previous = timestamp;
+		}
+	}
+
+	@Test
+	public void testStripedQueue_Ties() throws Exception {
+		StripedQueue<TrackerEvent> queue = new StripedQueue<>(
+				Comparator.comparing(TrackerEvent::getTimeStamp));
+		Instant now = Instant.now();
+		TrackerEvent first = new TrackerEvent(now);
+		first.setEvent(new TraceVerb("selected"));
+		TrackerEvent second = new TrackerEvent(now);
+		second.setEvent(new TraceVerb("accessed"));
+		queue.enqueue(first);
+		Thread producer = new Thread(() -> queue.enqueue(second));
+		producer.start();
+		producer.join();
+
+		// equal timestamps are merged in stripe order, whatever their verbs
+		List<TrackerEvent> merged = new ArrayList<>();
+		queue.drainTo(merged::add, 2);
+		assertTrue(merged.get(0) == first);
+		assertTrue(merged.get(1) == second);
+	}
+
+	@Test
+	public void testTraceSending_FlushAsync() throws Exception {
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		enqueueTrace01();
+		enqueueTrace02();
+		enqueueTrace03();
+		FlushResult result = TrackerAsset.getInstance().flushAsync().get();
+		assertEquals(3, result.getSentTraces());
+		assertEquals(storage.load("netstorage").length(),
+				result.getSentBytes());
+		assertEquals(0, result.getFailedRequests());
+		assertTrue(result.isComplete());
+
+		bridge.setConnected(false);
+		enqueueTrace01();
+		result = TrackerAsset.getInstance().exitAsync().get();
+		assertEquals(0, result.getSentTraces());
+		assertEquals(1, result.getFailedRequests());
+		assertEquals(1, result.getPendingTraces());
+		bridge.setConnected(true);
+	}
+
+	@Test
+	public void testSessions() throws Exception {
+		TesterBridge bridge = new TesterBridge();
+		// the tester bridge is not thread-safe: a single flushing thread
+		TrackerSessionFactory factory = new TrackerSessionFactory(bridge, 1);
+		List<TrackerAsset> sessions = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			TrackerAssetSettings sessionSettings = new TrackerAssetSettings();
+			sessionSettings
+					.setTraceFormat(TrackerAssetSettings.TraceFormats.XAPI);
+			sessionSettings
+					.setStorageType(TrackerAssetSettings.StorageTypes.NET);
+			TrackerAsset session = factory.newSession(sessionSettings);
+			session.start();
+			sessions.add(session);
+		}
+		bridge.delete("netstorage");
+		for (int i = 0; i < sessions.size(); i++) {
+			sessions.get(i).trace("accessed", "gameobject", "Session" + i);
+		}
+		for (TrackerAsset session : sessions) {
+			FlushResult result = session.flushAsync().get();
+			assertEquals(1, result.getSentTraces());
+		}
+		factory.shutdown();
+
+		String text = "[" + bridge.load("netstorage").replace("][", "],[")
+				+ "]";
+		ArrayList file = gson.fromJson(text, arraymap.getClass());
+		assertEquals(3, file.size());
+		for (int i = 0; i < sessions.size(); i++) {
+			Map trace = (Map) ((ArrayList) file.get(i)).get(0);
+			assertTrue(((String) ((Map) trace.get("object")).get("id"))
+					.endsWith("Session" + i));
+		}
+	}
+
+	@Test
+	public void testTraceSending_Compressed() throws Exception {
+		settings.setCompression(TrackerAssetSettings.Compressions.GZIP);
+		settings.setCompressionThreshold(0);
+		GunzipBridge gunzip = new GunzipBridge();
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, gunzip);
+		storage.delete("netstorage");
+		enqueueTrace01();
+		enqueueTrace02();
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+		assertEquals(2, gunzip.compressed);
+
+		// small batches are sent as they are
+		settings.setCompressionThreshold(100000);
+		enqueueTrace01();
+		TrackerAsset.getInstance().flush();
+		assertEquals(2, gunzip.compressed);
+
+		String text = storage.load("netstorage");
+		text = "[" + text.replace("][", "],[") + "]";
+		ArrayList file = gson.fromJson(text, arraymap.getClass());
+		assertEquals(3, file.size());
+		assertEquals(2, ((ArrayList) file.get(0)).size());
+		assertEquals(1, ((ArrayList) file.get(1)).size());
+		assertEquals(1, ((ArrayList) file.get(2)).size());
+
+		// the threshold is in bytes: fewer chars than that are compressed
+		StringBuilder id = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			id.append('\u4e2d');
+		}
+		settings.setCompressionThreshold(2000);
+		TrackerAsset.getInstance().trace("accessed", "gameobject",
+				id.toString());
+		TrackerAsset.getInstance().flush();
+		assertEquals(3, gunzip.compressed);
+	}
+
+	@Test
+	public void testTraceSending_BackupCopy() throws Exception {
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		storage.delete(settings.getBackupFile());
+		enqueueTrace01();
+		enqueueTrace02();
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+		// the backup has the same statements, without the array framing
+		String sent = storage.load("netstorage");
+		assertEquals(
+				sent.replace("[" + TrackerEventMarshaller.LINE_SEPARATOR, "")
+						.replace(TrackerEventMarshaller.LINE_SEPARATOR + "]",
+								TrackerEventMarshaller.LINE_SEPARATOR),
+				storage.load(settings.getBackupFile()));
+	}
+
+	@Test
+	public void testNdjsonFormat_Stored() throws Exception {
+		cleanStorage();
+		initTracker("NDJSON");
+		enqueueTrace01();
+		enqueueTrace02();
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+		enqueueTrace01();
+		TrackerAsset.getInstance().flush();
+		// one xAPI statement per line, appended on each flush
+		String[] lines = storage.load(settings.getLogFile())
+				.split(TrackerEventMarshaller.LINE_SEPARATOR);
+		assertEquals(4, lines.length);
+		for (String line : lines) {
+			Map statement = gson.fromJson(line, Map.class);
+			assertNotNull(statement.get("object"));
+		}
+		assertEquals("ObjectID2",
+				((Map) gson.fromJson(lines[1], Map.class).get("object"))
+						.get("id"));
+	}
+
+	@Test
+	public void testTraceSending_WriteAheadLog() throws Exception {
+		File dir = folder.newFolder("tracker-wal");
+		settings.setWalDirectory(dir.getPath());
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		bridge.setConnected(false);
+		enqueueTrace01();
+		enqueueTrace02();
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+
+		// batches only kept in memory are lost on stop, logged ones are
+		// replayed on start
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		bridge.setConnected(true);
+		enqueueTrace01();
+		TrackerAsset.getInstance().flush();
+		String text = storage.load("netstorage");
+		text = "[" + text.replace("][", "],[") + "]";
+		ArrayList file = gson.fromJson(text, arraymap.getClass());
+		assertEquals(3, file.size());
+		assertEquals(2, ((ArrayList) file.get(0)).size());
+		assertEquals(1, ((ArrayList) file.get(1)).size());
+		assertEquals(1, ((ArrayList) file.get(2)).size());
+
+		// acknowledged batches are not sent again
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		enqueueTrace02();
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+		file = gson.fromJson(storage.load("netstorage"), ArrayList.class);
+		assertEquals(1, file.size());
+
+		// a batch failing with an exception goes back to the queue, and is
+		// not left in the log
+		boolean[] broken = { true };
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET,
+				new TesterBridge() {
+					@Override
+					public RequestResponse WebServiceRequest(
+							RequestSettings request) {
+						if (broken[0]
+								&& request.uri.getPath().endsWith("/track")) {
+							throw new IllegalStateException("Broken bridge");
+						}
+						return super.WebServiceRequest(request);
+					}
+				});
+		enqueueTrace01();
+		try {
+			TrackerAsset.getInstance().flush();
+			fail("Broken bridge");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		broken[0] = false;
+		TrackerAsset.getInstance().flush();
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+		assertEquals("", storage.load("netstorage"));
+	}
+
+	@Test
+	public void testCsvTokenizer() throws Exception {
+		// only "\\," is an escape
+		assertEquals(Arrays.asList("a\\b", "c"),
+				TrackerUtils.parseCSV("a\\b,c"));
+		assertEquals(Arrays.asList("x,y", "z", ""),
+				TrackerUtils.parseCSV("x\\,y,z,"));
+
+		CsvTokenizer fields = new CsvTokenizer();
+		fields.reset(ByteBuffer.wrap(
+				"1583056800000,\u00f1and\u00fa\\,1,-0.125,TRUE,1.0E-5"
+						.getBytes("UTF-8")));
+		assertTrue(fields.next());
+		assertEquals(1583056800000L, fields.parseLong());
+		assertTrue(fields.next());
+		assertEquals("\u00f1and\u00fa,1", fields.string());
+		assertTrue(fields.next());
+		assertEquals(-0.125f, fields.parseFloat(), 0f);
+		assertTrue(fields.next());
+		assertTrue(fields.parseBoolean());
+		assertTrue(fields.next());
+		assertEquals(1.0E-5f, fields.parseFloat(), 0f);
+		assertFalse(fields.next());
+
+		// floats are parsed as Float.parseFloat does
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			String value = Float.toString(
+					i % 2 == 0 ? random.nextFloat() * 1000 : random.nextFloat());
+			fields.reset(value).next();
+			assertEquals(value, Float.parseFloat(value), fields.parseFloat(),
+					0f);
+		}
+		fields.reset("12a").next();
+		try {
+			fields.parseLong();
+			fail("Not a number");
+		} catch (NumberFormatException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCsvTraceReader() throws Exception {
+		String text = "1583056800000,accessed,zone,Zone\\,1,response,a\\,b,"
+				+ "score,0.5\r\n\r\nnot a trace\r\n"
+				+ "1583056800001,selected,alternative,Menu,success,true";
+
+		// escaped commas are kept in their fields
+		CsvTraceReader reader = new CsvTraceReader(new StringReader(text));
+		TrackerEvent event = reader.next();
+		assertEquals("Zone,1", event.getTarget().getID());
+		assertEquals("a,b", event.getResult().getResponse());
+		assertEquals(0.5f, event.getResult().getScore(), 0.0001f);
+		try {
+			reader.hasNext();
+			fail("Invalid lines should not be read");
+		} catch (UnmarshallingException e) {
+			// expected
+		}
+
+		List<Exception> skipped = new ArrayList<>();
+		reader = new CsvTraceReader(
+				new ByteArrayInputStream(text.getBytes("UTF-8")))
+						.skipInvalid(skipped::add);
+		List<TrackerEvent> events = new ArrayList<>();
+		try (Stream<TrackerEvent> stream = reader.stream()) {
+			stream.forEach(events::add);
+		}
+		assertEquals(2, events.size());
+		assertEquals(1, skipped.size());
+		assertEquals("Zone,1", events.get(0).getTarget().getID());
+		assertEquals(Instant.ofEpochMilli(1583056800001L),
+				events.get(1).getTimeStamp());
+		assertTrue(events.get(1).getResult().getSuccess());
+		assertEquals(text.length(), reader.getPosition());
+	}
+
+	@Test
+	public void testCsvUnmarshaller_TrailingEmptyValue() throws Exception {
+		// trailing empty values are missing ones, not empty strings
+		for (String key : Arrays.asList("success", "score", "response",
+				"extension")) {
+			TrackerEvent event = CSV_UNMARSHALLER
+					.unmarshal("1583056800000,accessed,zone,Zone," + key + ",");
+			assertNull(event.getResult().getSuccess());
+			assertNull(event.getResult().getScore());
+			assertNull(event.getResult().getResponse());
+			assertTrue(event.getResult().getExtensions().isEmpty());
+		}
+		TrackerEvent event = CSV_UNMARSHALLER.unmarshal(
+				"1583056800000,accessed,zone,Zone,success,true,score,,,");
+		assertTrue(event.getResult().getSuccess());
+		assertNull(event.getResult().getScore());
+
+		// empty values followed by others are kept
+		event = CSV_UNMARSHALLER.unmarshal(
+				"1583056800000,accessed,zone,Zone,note,,success,true");
+		assertEquals("", event.getResult().getExtensions().get("note"));
+		assertTrue(event.getResult().getSuccess());
+	}
+
+	@Test
+	public void testTraceReplay() throws Exception {
+		File dir = folder.newFolder("tracker-replay");
+		File backup = new File(dir, "backup.csv");
+		File checkpoint = new File(dir, "backup.replay");
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			lines.append(1583056800000L + i).append(",accessed,zone,Target")
+					.append(i).append("\r\n");
+		}
+		lines.append("not a trace\r\n");
+		Files.write(backup.toPath(), lines.toString().getBytes("UTF-8"));
+		// local storage is refused
+		initTracker("NDJSON");
+		try {
+			new TraceReplay(TrackerAsset.getInstance())
+					.replay(Arrays.asList(backup));
+			fail("Replay needs a NET storage");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		// batches in flight are posted concurrently
+		initTracker("NDJSON", TrackerAssetSettings.StorageTypes.NET,
+				new TesterBridge() {
+					@Override
+					public synchronized RequestResponse WebServiceRequest(
+							RequestSettings request) {
+						return super.WebServiceRequest(request);
+					}
+				});
+		storage.delete("netstorage");
+		TraceReplay replay = new TraceReplay(TrackerAsset.getInstance())
+				.batchSize(4096).maxInFlight(4).retries(0)
+				.checkpoint(checkpoint);
+
+		// no progress while the collector is down
+		bridge.setConnected(false);
+		try {
+			replay.replay(Arrays.asList(backup));
+			fail("Replay should fail");
+		} catch (IOException e) {
+			assertTrue(!checkpoint.exists());
+		}
+		bridge.setConnected(true);
+		assertEquals(1000, replay.replay(Arrays.asList(backup)));
+		assertEquals(1, replay.getSkippedLines());
+		assertTrue(checkpoint.isFile());
+
+		// only new lines are sent, and not the one still being written
+		lines.setLength(0);
+		for (int i = 1000; i < 1500; i++) {
+			lines.append(1583056800000L + i).append(",accessed,zone,Target")
+					.append(i).append("\r\n");
+		}
+		lines.append("1583056801500,accessed,zone,Tar");
+		Files.write(backup.toPath(), lines.toString().getBytes("UTF-8"),
+				StandardOpenOption.APPEND);
+		assertEquals(500, replay.replay(Arrays.asList(backup)));
+		TrackerAsset.getInstance().stop();
+
+		List<Object> ids = new ArrayList<>();
+		for (String line : storage.load("netstorage").split("\r\n")) {
+			if (!line.isEmpty()) {
+				Map trace = gson.fromJson(line, Map.class);
+				ids.add(((Map) trace.get("object")).get("id"));
+			}
+		}
+		assertEquals(1500, ids.size());
+		assertEquals(1500, new HashSet<>(ids).size());
+	}
+
+	@Test
+	public void testLocalLogDirectory() throws Exception {
+		File dir = folder.newFolder("tracker-log");
+		settings.setLogDirectory(dir.getPath());
+		cleanStorage();
+		initTracker("XAPI");
+		enqueueTrace01();
+		TrackerAsset.getInstance().flush();
+		enqueueTrace02();
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+		// the array is continued after a restart
+		initTracker("XAPI");
+		enqueueTrace01();
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+
+		File log = new File(dir, settings.getLogFile());
+		String text = new String(Files.readAllBytes(log.toPath()), "UTF-8");
+		ArrayList file = gson.fromJson(text, ArrayList.class);
+		assertEquals(4, file.size());
+		assertEquals("ObjectID2",
+				((Map) ((Map) file.get(1)).get("object")).get("id"));
+		// nothing goes through the bridge
+		assertTrue(!storage.exists(settings.getLogFile()));
+
+		// an unclosed array is repaired, and appended to
+		Files.write(log.toPath(), text.substring(0, text.length() - 1)
+				.getBytes("UTF-8"));
+		initTracker("XAPI");
+		enqueueTrace01();
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+		text = new String(Files.readAllBytes(log.toPath()), "UTF-8");
+		assertEquals(5, gson.fromJson(text, ArrayList.class).size());
+
+		// a torn event is dropped; a complete one followed by the rest of
+		// the footer it overwrote is kept
+		String closed = text.substring(0, text.length() - 3);
+		for (String torn : new String[] { closed + ",\r\n{\"id\":\"tor",
+				closed + ",\n]" }) {
+			Files.write(log.toPath(), torn.getBytes("UTF-8"));
+			FileChannel channel = FileChannel.open(log.toPath(),
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try {
+				assertTrue(LocalLogWriter.repair(channel));
+				assertTrue(!LocalLogWriter.repair(channel));
+			} finally {
+				channel.close();
+			}
+			assertEquals(text,
+					new String(Files.readAllBytes(log.toPath()), "UTF-8"));
+		}
+	}
+
+	@Test
+	public void testBackupLogDirectory() throws Exception {
+		File dir = folder.newFolder("tracker-backup");
+		settings.setLogDirectory(dir.getPath());
+		settings.setBackupSync(TrackerSettings.SyncPolicies.BATCHES);
+		settings.setBackupSyncBatches(1);
+		cleanStorage();
+		initTracker("JSON", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		enqueueTrace01();
+		enqueueTrace02();
+		TrackerAsset.getInstance().flush();
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+
+		// the sent batches are reused as CSV lines, and the backup does not
+		// go through the bridge
+		File backup = new File(dir, settings.getBackupFile());
+		String[] lines = new String(Files.readAllBytes(backup.toPath()),
+				"UTF-8").split(TrackerEventMarshaller.LINE_SEPARATOR);
+		assertEquals(3, lines.length);
+		assertTrue(lines[1].contains("ObjectID2"));
+		assertTrue(!storage.exists(settings.getBackupFile()));
+		assertTrue(storage.load("netstorage").contains("ObjectID3"));
+	}
+
+	@Test
+	public void testLocalLogSegments() throws Exception {
+		File dir = folder.newFolder("tracker-segments");
+		settings.setLogDirectory(dir.getPath());
+		settings.setLogSegmentSize(1);
+		cleanStorage();
+		initTracker("CSV");
+		enqueueTrace01();
+		enqueueTrace02();
+		TrackerAsset.getInstance().flush();
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+
+		String prefix = settings.getLogFile().replace(".log", "");
+		File manifest = new File(dir, prefix + ".manifest");
+		List<String> entries = Files.readAllLines(manifest.toPath());
+		assertEquals(2, entries.size());
+		Map first = gson.fromJson(entries.get(0), Map.class);
+		assertEquals(prefix + ".000000.log", first.get("segment"));
+		assertEquals(2.0, first.get("events"));
+		assertEquals(1.0, gson.fromJson(entries.get(1), Map.class)
+				.get("events"));
+		File segment = new File(dir, prefix + ".000001.log");
+		assertEquals((double) segment.length(),
+				gson.fromJson(entries.get(1), Map.class).get("bytes"));
+
+		// a segment left unsealed by a crash is sealed on the next open,
+		// without the line it was writing
+		byte[] sealed = Files.readAllBytes(segment.toPath());
+		File unsealed = new File(dir, prefix + ".000005.log");
+		Files.write(unsealed.toPath(), sealed);
+		Files.write(unsealed.toPath(), "1583056800000,acc".getBytes("UTF-8"),
+				StandardOpenOption.APPEND);
+		initTracker("CSV");
+		enqueueTrace01();
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+		entries = Files.readAllLines(manifest.toPath());
+		assertEquals(4, entries.size());
+		Map recovered = gson.fromJson(entries.get(2), Map.class);
+		assertEquals(unsealed.getName(), recovered.get("segment"));
+		assertEquals(1.0, recovered.get("events"));
+		assertTrue(Arrays.equals(sealed,
+				Files.readAllBytes(unsealed.toPath())));
+		assertEquals(prefix + ".000006.log",
+				gson.fromJson(entries.get(3), Map.class).get("segment"));
+	}
+
+	@Test
+	public void testLocalLogSegments_Torn() throws Exception {
+		File dir = folder.newFolder("tracker-segments");
+		settings.setLogDirectory(dir.getPath());
+		settings.setLogSegmentSize(1);
+		cleanStorage();
+		initTracker("XAPI");
+		enqueueTrace01();
+		enqueueTrace02();
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+
+		// an array torn by a crash is closed before being sealed, even if
+		// it was made read-only but left out of the manifest
+		String prefix = settings.getLogFile().replace(".log", "");
+		String text = new String(Files.readAllBytes(
+				new File(dir, prefix + ".000000.log").toPath()), "UTF-8");
+		File torn = new File(dir, prefix + ".000005.log");
+		Files.write(torn.toPath(), (text.substring(0, text.length() - 3)
+				+ ",\r\n{\"id\":\"tor").getBytes("UTF-8"));
+		torn.setReadOnly();
+		initTracker("XAPI");
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+		assertEquals(text,
+				new String(Files.readAllBytes(torn.toPath()), "UTF-8"));
+		List<String> entries = Files.readAllLines(
+				new File(dir, prefix + ".manifest").toPath());
+		Map sealed = gson.fromJson(entries.get(1), Map.class);
+		assertEquals(torn.getName(), sealed.get("segment"));
+		assertEquals(2.0, sealed.get("events"));
+	}
+
+	@Test
+	public void testCompressedBlocks() throws Exception {
+		File source = folder.newFile("tracker-blocks.log");
+		File target = new File(source.getPath() + CompressedBlocks.EXTENSION);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < 5 * CompressedBlocks.BLOCK_SIZE; i++) {
+			text.append(i).append(",actor,accessed,zone,Zone").append(i % 17)
+					.append(TrackerEventMarshaller.LINE_SEPARATOR);
+		}
+		byte[] raw = text.toString().getBytes("UTF-8");
+		Files.write(source.toPath(), raw);
+		CompressedBlocks.compress(source, target);
+		assertTrue(target.length() < raw.length / 4);
+
+		try (CompressedBlocks.Reader reader = new CompressedBlocks.Reader(
+				target)) {
+			assertEquals(raw.length, reader.length());
+			ByteArrayOutputStream all = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1000];
+			int n;
+			while ((n = reader.read(buffer)) > 0) {
+				all.write(buffer, 0, n);
+			}
+			assertTrue(Arrays.equals(raw, all.toByteArray()));
+			// any position, across blocks and backwards
+			for (long position : new long[] { 3 * CompressedBlocks.BLOCK_SIZE
+					- 10, 12345, raw.length - 5 }) {
+				reader.seek(position);
+				byte[] read = new byte[20];
+				int length = reader.read(read);
+				assertTrue(length > 0);
+				assertTrue(Arrays.equals(
+						Arrays.copyOfRange(raw, (int) position,
+								(int) position + length),
+						Arrays.copyOf(read, length)));
+			}
+		}
+	}
+
+	@Test
+	public void testLocalLogSegments_Compacted() throws Exception {
+		File dir = folder.newFolder("tracker-compact");
+		settings.setLogDirectory(dir.getPath());
+		settings.setLogSegmentSize(1);
+		settings.setCompactLogs(true);
+		settings.setBackupStorage(false);
+		cleanStorage();
+		initTracker("CSV");
+		enqueueTrace01();
+		enqueueTrace02();
+		TrackerAsset.getInstance().flush();
+		// sealing the first segment wakes up the compactor
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+		String prefix = settings.getLogFile().replace(".log", "");
+		File segment = new File(dir, prefix + ".000000.log");
+		File compressed = new File(dir,
+				segment.getName() + CompressedBlocks.EXTENSION);
+		for (int i = 0; i < 500 && segment.exists(); i++) {
+			Thread.sleep(10);
+		}
+		TrackerAsset.getInstance().stop();
+
+		assertTrue(!segment.exists());
+		try (CompressedBlocks.Reader reader = new CompressedBlocks.Reader(
+				compressed)) {
+			ByteArrayOutputStream all = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1000];
+			int n;
+			while ((n = reader.read(buffer)) > 0) {
+				all.write(buffer, 0, n);
+			}
+			String[] lines = all.toString("UTF-8")
+					.split(TrackerEventMarshaller.LINE_SEPARATOR);
+			assertEquals(2, lines.length);
+			assertTrue(lines[1].contains("ObjectID2"));
+		}
+	}
+
+	@Test
+	public void testTraceLogQuery() throws Exception {
+		File dir = folder.newFolder("tracker-index");
+		settings.setLogDirectory(dir.getPath());
+		settings.setBackupStorage(false);
+		settings.setBatchSize(100);
+		cleanStorage();
+		initTracker("CSV");
+		Instant start = Instant.parse("2020-03-01T10:00:00Z");
+		for (int i = 0; i < 10000; i++) {
+			// accessed zones for two hours, then completed menus
+			boolean first = i < 5000;
+			TrackerEvent event = new TrackerEvent(
+					start.plusSeconds(first ? i : 7200 + i));
+			event.setEvent(new TraceVerb(first ? TraceVerb.Verb.Accessed
+					: TraceVerb.Verb.Completed));
+			event.setTarget(new TrackerEvent.TraceObject(
+					first ? "zone" : "menu", "Target" + i));
+			TrackerAsset.getInstance().trace(event);
+		}
+		TrackerAsset.getInstance().flush();
+		TrackerAsset.getInstance().stop();
+
+		File log = new File(dir, settings.getLogFile());
+		List<String> all = new ArrayList<>();
+		new TraceLogQuery(log).read(all::add);
+		assertEquals(10000, all.size());
+
+		TraceLogQuery completed = new TraceLogQuery(log).between(
+				start.plusSeconds(7200), start.plusSeconds(20000));
+		List<long[]> ranges = completed.ranges(log.length());
+		// the blocks of the first hours are skipped
+		assertEquals(1, ranges.size());
+		assertTrue(ranges.get(0)[0] > 0);
+		List<String> lines = new ArrayList<>();
+		completed.read(lines::add);
+		assertTrue(lines.size() < 8000);
+		assertEquals(all.get(all.size() - 1), lines.get(lines.size() - 1));
+		int matches = 0;
+		for (String line : lines) {
+			matches += line.contains("completed") ? 1 : 0;
+		}
+		assertEquals(5000, matches);
+
+		lines.clear();
+		new TraceLogQuery(log).verbs(TraceVerb.Verb.Accessed).types("zone")
+				.read(lines::add);
+		assertEquals(all.get(0), lines.get(0));
+		assertTrue(lines.size() < 8000);
+
+		// compressed logs are read in the same way
+		File compressed = new File(log.getPath() + CompressedBlocks.EXTENSION);
+		CompressedBlocks.compress(log, compressed);
+		log.delete();
+		List<String> fromCompressed = new ArrayList<>();
+		new TraceLogQuery(log).verbs(TraceVerb.Verb.Accessed).types("zone")
+				.read(fromCompressed::add);
+		assertEquals(lines, fromCompressed);
+	}
+
+	@Test
+	public void testBinaryFormat_RoundTrip() throws Exception {
+		List<TrackerEvent> events = new ArrayList<>();
+		Instant start = Instant.parse("2020-03-01T10:00:00.123456789Z");
+		for (int i = 0; i < 100; i++) {
+			TrackerEvent event = new TrackerEvent(start.plusMillis(i * 250));
+			event.setEvent(new TraceVerb(TraceVerb.Verb.values()[i % 9]));
+			// "dialog" has no single-byte code: it is sent as a string
+			event.setTarget(new TrackerEvent.TraceObject(
+					i % 2 == 0 ? "menu" : "dialog", "Target" + i % 7));
+			if (i % 3 == 0) {
+				event.getResult().setSuccess(i % 2 == 0);
+				event.getResult().setResponse("ñandú " + i % 4);
+				event.getResult().setScore(i / 100f);
+			}
+			Map<String, Object> extensions = event.getResult()
+					.getExtensions();
+			extensions.put("health", i * 0.5);
+			extensions.put("level", i);
+			extensions.put("big", 1L << 40);
+			extensions.put("ratio", 0.25f);
+			extensions.put("alive", true);
+			extensions.put("zone", "Zone" + i % 3);
+			if (i % 10 == 0) {
+				extensions.put("pi", Math.PI);
+				extensions.put("zero", -0.0);
+				// collections keep the types of their values
+				Map<String, Object> position = new LinkedHashMap<>();
+				position.put("x", i);
+				position.put("y", 1L << 40);
+				position.put("tags", Arrays.asList("a", 2, 0.5f));
+				extensions.put("position", position);
+			}
+			events.add(event);
+		}
+		// nulls (only allowed when not strict) are kept, not turned into
+		// "null"
+		TrackerUtils.setStrictMode(false);
+		TrackerEvent empty = new TrackerEvent(start);
+		empty.setEvent(new TraceVerb(TraceVerb.Verb.Accessed));
+		empty.setTarget(new TrackerEvent.TraceObject((String) null, null));
+		empty.getResult().getExtensions().put("missing", null);
+		events.add(empty);
+
+		StringBuilder data = new StringBuilder();
+		BatchEncoder encoder = new BatchEncoder(null,
+				TrackerAssetSettings.TraceFormats.BINARY);
+		encoder.open(data);
+		for (TrackerEvent event : events) {
+			encoder.append(event, null);
+		}
+		encoder.close();
+
+		List<TrackerEvent> decoded;
+		try {
+			decoded = new BinaryTrackerEventUnmarshaller()
+					.unmarshalBatch(data.toString());
+		} finally {
+			TrackerUtils.setStrictMode(true);
+		}
+		assertEquals(events, decoded);
+		TrackerEvent last = decoded.get(decoded.size() - 1);
+		assertNull(last.getTarget().getType());
+		assertNull(last.getTarget().getID());
+		assertTrue(last.getResult().getExtensions().containsKey("missing"));
+		assertNull(last.getResult().getExtensions().get("missing"));
+		events.remove(empty);
+
+		// verbose formats are an order of magnitude larger
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		String xapi = TrackerAsset.getInstance().processTraces(events,
+				TrackerAssetSettings.TraceFormats.XAPI);
+		// raw bytes, as sent by streaming bridges
+		byte[] bytes = BinaryTraceEncoder.get().toByteArray();
+		assertTrue(xapi.length() > 10 * bytes.length);
+	}
+
+	@Test
+	public void testBinaryFormat_Stored() throws Exception {
+		cleanStorage();
+		initTracker("BINARY");
+		enqueueTrace01();
+		enqueueTrace02();
+		enqueueTrace03();
+		TrackerAsset.getInstance().flush();
+		String[] batches = storage.load(settings.getLogFile())
+				.split(TrackerEventMarshaller.LINE_SEPARATOR);
+		List<TrackerEvent> events = new ArrayList<>();
+		for (String batch : batches) {
+			events.addAll(new BinaryTrackerEventUnmarshaller()
+					.unmarshalBatch(batch));
+		}
+		assertEquals(3, events.size());
+		assertEquals("ObjectID", events.get(0).getTarget().getID());
+		assertEquals("TheResponse", events.get(1).getResult().getResponse());
+		assertEquals(123.456f, events.get(2).getResult().getScore(), 0);
+	}
+
+	@Test
+	public void testCsvMarshaller() throws Exception {
+		TrackerEvent event = new TrackerEvent(Instant.ofEpochMilli(1234));
+		event.setEvent(new TraceVerb(TraceVerb.Verb.Selected));
+		event.setTarget(
+				new TrackerEvent.TraceObject("alternative", "Menu,1"));
+		event.getResult().setSuccess(true);
+		event.getResult().setResponse("a,b");
+		event.getResult().setScore(0.25f);
+		Map<String, Object> position = new LinkedHashMap<>();
+		position.put("x", 1);
+		position.put("Visible", "TRUE");
+		event.getResult().getExtensions().put("position", position);
+
+		StringBuilder buffer = new StringBuilder("prefix;");
+		new CsvTrackerEventMarshaller().marshal(event, null, buffer);
+		assertEquals("prefix;1234,selected,alternative,Menu\\,1,success,true,"
+				+ "response,a\\,b,score,0.25,position,x=1-Visible=true",
+				buffer.toString());
+	}
+
+	@Test
+	public void testStreamingMarshaller() throws Exception {
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		TrackerEvent event = new TrackerEvent();
+		event.setEvent(new TraceVerb(TraceVerb.Verb.Selected));
+		event.setTarget(new TrackerEvent.TraceObject("alternative",
+				"Menu <\"a&b\"> =\u2028'\t"));
+		event.getResult().setSuccess(true);
+		event.getResult().setResponse("ñandú\n");
+		event.getResult().setScore(0.25f);
+		Map<String, Object> extensions = new HashMap<>();
+		extensions.put("health", 3.5);
+		extensions.put("progress", 1);
+		extensions.put("list", Arrays.asList("a", 1, null));
+		Map<String, Object> nested = new HashMap<>();
+		nested.put("k", "v");
+		nested.put("none", null);
+		extensions.put("map", nested);
+		event.getResult().setExtensions(extensions);
+
+		for (JsonTrackerEventMarshaller marshaller : new JsonTrackerEventMarshaller[] {
+				new JsonTrackerEventMarshaller(),
+				new XapiTrackerEventMarshaller() }) {
+			// the cached actor fragment follows the tracker's actor
+			assertTrue(marshaller.marshal(event, null)
+					.startsWith("{\"actor\":{},"));
+			String streamed = marshaller.marshal(event,
+					TrackerAsset.getInstance());
+			String expected = gson.toJson(
+					marshaller.toMap(event, TrackerAsset.getInstance()),
+					Map.class);
+			assertEquals(gson.fromJson(expected, Map.class),
+					gson.fromJson(streamed, Map.class));
+			// same escaping as gson
+			String id = gson.toJson(event.getTarget().getID());
+			assertTrue(expected.contains(id.substring(1)));
+			assertTrue(streamed.contains(id.substring(1)));
+			assertEquals(expected.length(), streamed.length());
+		}
+	}
+
+	@Test
+	public void testStreamingMarshaller_ActorChanged() throws Exception {
+		String[] player = { "test-animal-name" };
+		TesterBridge players = new TesterBridge() {
+			@Override
+			public RequestResponse WebServiceRequest(
+					RequestSettings request) {
+				RequestResponse response = super.WebServiceRequest(request);
+				if (response.body != null) {
+					response.body = response.body.replace("test-animal-name",
+							player[0]);
+				}
+				return response;
+			}
+		};
+		TrackerEvent event = new TrackerEvent();
+		event.setEvent(new TraceVerb(TraceVerb.Verb.Selected));
+		event.setTarget(new TrackerEvent.TraceObject("alternative", "Menu"));
+		XapiTrackerEventMarshaller marshaller = new XapiTrackerEventMarshaller();
+
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, players);
+		assertTrue(marshaller.marshal(event, TrackerAsset.getInstance())
+				.contains("\"test-animal-name\""));
+
+		// a new start replaces the actor: its cached fragment is rebuilt
+		player[0] = "other-animal-name";
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, players);
+		String json = marshaller.marshal(event, TrackerAsset.getInstance());
+		assertTrue(json.contains("\"other-animal-name\""));
+		assertTrue(!json.contains("test-animal-name"));
+	}
+
+	@Test
+	public void testTraceSending_BackgroundFlush() throws Exception {
+		settings.setBackgroundFlush(true);
+		settings.setMaxFlushLatency(50);
+		initTracker("XAPI", TrackerAssetSettings.StorageTypes.NET, null);
+		storage.delete("netstorage");
+		enqueueTrace01();
+		// no explicit flush: the flush thread sends it
+		String text = "";
+		for (int i = 0; i < 100 && text.isEmpty(); i++) {
+			Thread.sleep(50);
+			text = storage.load("netstorage");
+		}
+		TrackerAsset.getInstance().stop();
+
+		ArrayList file = gson.fromJson(text, arraymap.getClass());
+		assertEquals(1, file.size());
+	}
+
 	@Test
 	public void testBackupSync() throws Exception {
 		if (storage != null)
@@ -1159,6 +2344,34 @@ public class TrackerAssetTest {
 		assertEquals(backup.length, 1);
 	}
 
+	/**
+	 * Decompresses gzip-encoded requests before storing them
+	 */
+	private static class GunzipBridge extends TesterBridge
+			implements StreamingWebServiceRequest {
+
+		int compressed;
+
+		@Override
+		public RequestResponse WebServiceRequest(
+				RequestSettings requestSettings, BodyWriter body) {
+			assertEquals("gzip",
+					requestSettings.requestHeaders.get("Content-Encoding"));
+			compressed++;
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				body.writeTo(out);
+				requestSettings.body = new String(
+						HttpWebServiceRequestTest.readAll(new GZIPInputStream(
+								new ByteArrayInputStream(out.toByteArray()))),
+						"UTF-8");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return WebServiceRequest(requestSettings);
+		}
+	}
+
 	private void append(String file, String text) throws Exception {
 		if (append_storage != null) {
 			append_storage.Append(file, text);